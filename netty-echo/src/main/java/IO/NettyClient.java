@@ -0,0 +1,75 @@
+package IO;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.util.CharsetUtil;
+
+import java.util.Objects;
+import java.util.Scanner;
+
+/**
+ * 命令行客户端：逐行读取输入发送给回显服务器，打印服务端返回的每一行
+ * @author fuhaifei
+ * */
+public class NettyClient {
+
+    public static void main(String[] args) throws InterruptedException {
+        String host = args.length > 0 ? args[0] : "127.0.0.1";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 9000;
+        //客户端只需要一个事件循环组
+        EventLoopGroup group = NettyEchoServer.newGroup(1);
+        try {
+            //注意客户端使用的不是ServerBootstrap而是Bootstrap
+            Bootstrap bootstrap = new Bootstrap();
+            bootstrap.group(group)
+                    .channel(NettyEchoServer.socketChannelClass())
+                    .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) {
+                            ch.pipeline().addLast(new LineBasedFrameDecoder(NettyEchoServer.MAX_FRAME_LENGTH));
+                            ch.pipeline().addLast(new NettyClientHandler());
+                        }
+                    });
+            Channel channel = bootstrap.connect(host, port).sync().channel();
+            //读取输入并不断发送
+            Scanner scanner = new Scanner(System.in);
+            System.out.println("send msg to server(e to exit):");
+            String nextLine = scanner.nextLine();
+            while(!Objects.equals(nextLine, "e")){
+                ByteBuf buf = channel.alloc().buffer();
+                buf.writeCharSequence(nextLine + "\n", CharsetUtil.UTF_8);
+                channel.writeAndFlush(buf);
+                nextLine = scanner.nextLine();
+            }
+            channel.close().sync();
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    //SimpleChannelInboundHandler在channelRead0返回后自动release消息
+    private static class NettyClientHandler extends SimpleChannelInboundHandler<ByteBuf> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) {
+            System.out.println("收到服务端的消息:" + msg.toString(CharsetUtil.UTF_8));
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            cause.printStackTrace();
+            ctx.close();
+        }
+    }
+}
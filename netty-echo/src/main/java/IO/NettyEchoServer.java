@@ -0,0 +1,119 @@
+package IO;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+
+import java.io.Closeable;
+
+/**
+ * Netty版本的按行回显服务器，协议与IO.ReactorServerDemo相同，作为自研Reactor的对照组
+ *  * 主从Reactor：bossGroup一个线程负责accept，workerGroup默认CPU核数*2个线程负责读写
+ *  * 传输层：Linux下使用epoll原生传输（边缘触发、更少的对象分配），其他平台或-Dnetty.transport=nio时使用NIO
+ *  * 内存：PooledByteBufAllocator，读缓冲和解码出的消息都来自池化直接内存
+ *  * 写缓冲水位与ReactorServerDemo一致（32KB/64KB），超过高水位暂停读取
+ * @author fuhaifei
+ * */
+public class NettyEchoServer implements Closeable {
+
+    static final int MAX_FRAME_LENGTH = 1024 * 1024;
+    static final WriteBufferWaterMark WATER_MARK = new WriteBufferWaterMark(32 * 1024, 64 * 1024);
+
+    private final int port;
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup workerGroup;
+    private final NettyServerHandler handler;
+    private Channel serverChannel;
+
+    public NettyEchoServer(int port){
+        this(port, 0, NettyServerHandler.INSTANCE);
+    }
+
+    /**
+     * @param workerThreads 从Reactor线程数，0表示使用Netty默认值（CPU核数*2）
+     * @param handler 回显处理器，可共享
+     * */
+    public NettyEchoServer(int port, int workerThreads, NettyServerHandler handler){
+        this.port = port;
+        this.handler = handler;
+        this.bossGroup = newGroup(1);
+        this.workerGroup = newGroup(workerThreads);
+    }
+
+    public static boolean useEpoll(){
+        return !"nio".equals(System.getProperty("netty.transport")) && Epoll.isAvailable();
+    }
+
+    static EventLoopGroup newGroup(int threads){
+        return useEpoll() ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+    }
+
+    static Class<? extends ServerChannel> serverChannelClass(){
+        return useEpoll() ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    static Class<? extends SocketChannel> socketChannelClass(){
+        return useEpoll() ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    public NettyEchoServer start() throws InterruptedException {
+        ServerBootstrap bootstrap = new ServerBootstrap();
+        bootstrap.group(bossGroup, workerGroup)
+                .channel(serverChannelClass())
+                // 服务端处理客户端连接请求是顺序处理的，来不及accept的连接放在队列中等待
+                .option(ChannelOption.SO_BACKLOG, 1024)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, WATER_MARK)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        //拆帧器有状态，每个连接一个；保留换行符，回显时不需要再封帧
+                        ch.pipeline().addLast(new LineBasedFrameDecoder(MAX_FRAME_LENGTH, false, true));
+                        ch.pipeline().addLast(handler);
+                    }
+                });
+        // 启动服务器(并绑定端口)，bind是异步操作，sync方法是等待异步操作执行完毕
+        serverChannel = bootstrap.bind(port).sync().channel();
+        System.out.println("netty server started on " + port + ", transport:" + (useEpoll() ? "epoll" : "nio"));
+        return this;
+    }
+
+    public Channel serverChannel(){
+        return serverChannel;
+    }
+
+    @Override
+    public void close() {
+        if(serverChannel != null){
+            serverChannel.close().syncUninterruptibly();
+        }
+        bossGroup.shutdownGracefully().syncUninterruptibly();
+        workerGroup.shutdownGracefully().syncUninterruptibly();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 9000;
+        //第二个参数为响应前缀，指定时使用CompositeByteBuf组合响应
+        NettyServerHandler handler = args.length > 1 ? new NettyServerHandler(args[1].getBytes()) : NettyServerHandler.INSTANCE;
+        NettyEchoServer server = new NettyEchoServer(port, 0, handler).start();
+        // 等待服务端监听端口关闭
+        server.serverChannel().closeFuture().sync();
+        server.close();
+    }
+}
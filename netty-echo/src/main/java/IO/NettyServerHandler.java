@@ -0,0 +1,102 @@
+package IO;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+/**
+ * 回显处理器，无状态，所有连接共享一个实例
+ *  * channelRead中只write不flush：一次读事件可能解码出多条消息，逐条writeAndFlush每条都是一次系统调用
+ *  * channelReadComplete在本轮读事件的所有消息处理完后触发一次，此时统一flush，多条响应合并为一次写
+ *  * 两种回显方式：
+ *      * 原样回显：msg直接write出去，所有权交给出站方向，写完后由HeadContext释放，这里不能再release
+ *      * 带前缀回显：header常量 + 请求行（去掉换行符）的切片 + 换行符，由ResponseBuilder组合，请求内容不拷贝
+ *  * 背压：出站缓冲超过高水位后channel变为不可写，暂停读取（autoRead=false），回落到低水位后恢复
+ * @author fuhaifei
+ * */
+@ChannelHandler.Sharable
+public class NettyServerHandler extends ChannelInboundHandlerAdapter {
+
+    public static final NettyServerHandler INSTANCE = new NettyServerHandler(null);
+
+    private static final ByteBuf TRAILER = ResponseBuilder.constant(new byte[]{'\n'});
+
+    //为null时原样回显
+    private final ByteBuf header;
+
+    /**
+     * @param header 每条响应的前缀，null表示原样回显
+     * */
+    public NettyServerHandler(byte[] header){
+        this.header = header == null ? null : ResponseBuilder.constant(header);
+    }
+
+    /**
+     * 读取客户端发送的数据
+     *
+     * @param ctx 上下文对象, 含有通道channel，管道pipeline
+     * @param msg LineBasedFrameDecoder解码出的一行（含换行符）
+     */
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if(header == null){
+            ctx.write(msg, ctx.voidPromise());
+            return;
+        }
+        ByteBuf line = (ByteBuf) msg;
+        ResponseBuilder builder = new ResponseBuilder(ctx.alloc());
+        try {
+            //bodySlice对line做retain，响应写完释放时再减回来
+            builder.header(header.duplicate())
+                    .bodySlice(line, line.readerIndex(), contentLength(line))
+                    .trailer(TRAILER.duplicate());
+        } catch (RuntimeException e) {
+            builder.discard();
+            throw e;
+        } finally {
+            //入站消息到这里为止，释放解码器交给本处理器的那一次引用
+            line.release();
+        }
+        ctx.write(builder.build(), ctx.voidPromise());
+    }
+
+    //去掉行尾的\n或\r\n
+    static int contentLength(ByteBuf line){
+        int length = line.readableBytes();
+        if(length > 0 && line.getByte(line.readerIndex() + length - 1) == '\n'){
+            length--;
+            if(length > 0 && line.getByte(line.readerIndex() + length - 1) == '\r'){
+                length--;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 本轮读事件处理完毕，批量flush
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        ctx.flush();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        boolean writable = ctx.channel().isWritable();
+        if(!writable){
+            //不可写时先把已经write的数据刷出去，否则一直等不到低水位
+            ctx.flush();
+        }
+        ctx.channel().config().setAutoRead(writable);
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    /**
+     * 处理异常, 一般是需要关闭通道
+     */
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        ctx.close();
+    }
+}
@@ -0,0 +1,79 @@
+package IO;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+/**
+ * 零拷贝响应组装：header + body + trailer 组合成一个CompositeByteBuf，各部分都不拷贝
+ *  * 组合只记录各个组件的引用和偏移，写出时由gathering write一次写出多个组件
+ *  * 引用计数约定：header/body/trailer传入后所有权转交给builder（与CompositeByteBuf.addComponent相同），
+ *    调用方还要继续使用的buffer需要先retain，或者传入retainedSlice/retainedDuplicate
+ *  * build()返回的CompositeByteBuf交给ctx.write后，写完由HeadContext释放，进而释放所有组件
+ *  * 中途放弃时调用discard()，释放已经加入的组件
+ * 非线程安全，一个响应一个builder
+ * @author fuhaifei
+ * */
+public final class ResponseBuilder {
+
+    private static final ByteBufAllocator CONSTANT_ALLOCATOR = new UnpooledByteBufAllocator(true, true);
+
+    /**
+     * 头尾常量：只读、不可释放的直接内存buffer，所有连接共享，release/retain对其无效
+     * 使用直接内存，写socket时不需要再从堆拷贝到直接内存；加入组合时传入duplicate()，各自持有读写索引
+     * 常量从不释放，由关闭了泄漏检测的分配器分配，否则持有它的处理器被GC时会被误报为泄漏
+     * */
+    public static ByteBuf constant(byte[] bytes){
+        return Unpooled.unreleasableBuffer(CONSTANT_ALLOCATOR.directBuffer(bytes.length).writeBytes(bytes).asReadOnly());
+    }
+
+    private final CompositeByteBuf composite;
+    private boolean built;
+
+    public ResponseBuilder(ByteBufAllocator allocator){
+        this.composite = allocator.compositeDirectBuffer(3);
+    }
+
+    public ResponseBuilder header(ByteBuf header){
+        return add(header);
+    }
+
+    public ResponseBuilder body(ByteBuf body){
+        return add(body);
+    }
+
+    /**
+     * 把source中[index, index + length)作为body，不转移source的所有权
+     * retainedSlice与source共享内存，source的引用计数加一，由组合buffer释放时减回来
+     * */
+    public ResponseBuilder bodySlice(ByteBuf source, int index, int length){
+        return add(source.retainedSlice(index, length));
+    }
+
+    public ResponseBuilder trailer(ByteBuf trailer){
+        return add(trailer);
+    }
+
+    private ResponseBuilder add(ByteBuf component){
+        if(built){
+            component.release();
+            throw new IllegalStateException("response already built");
+        }
+        composite.addComponent(true, component);
+        return this;
+    }
+
+    public CompositeByteBuf build(){
+        built = true;
+        return composite;
+    }
+
+    public void discard(){
+        if(!built){
+            built = true;
+            composite.release();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package IO;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.ResourceLeakDetectorFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 把Netty的泄漏报告收集起来供测试断言，而不是只打印日志
+ *  * PARANOID级别下每个buffer都被跟踪，buffer被GC时引用计数不为0即为泄漏
+ *  * ByteBuf的泄漏检测器在AbstractByteBuf类初始化时创建，install()必须在任何ByteBuf被使用之前调用
+ *  * 泄漏在下一次分配buffer时才会上报，detect()通过GC + 分配触发上报
+ * @author fuhaifei
+ * */
+final class LeakRecorder {
+
+    static final List<String> LEAKS = new CopyOnWriteArrayList<>();
+    private static boolean installed;
+
+    static synchronized void install(){
+        if(installed){
+            return;
+        }
+        installed = true;
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
+        ResourceLeakDetectorFactory.setResourceLeakDetectorFactory(new ResourceLeakDetectorFactory() {
+            @Override
+            @SuppressWarnings("deprecation")
+            public <T> ResourceLeakDetector<T> newResourceLeakDetector(Class<T> resource, int samplingInterval,
+                                                                       long maxActive) {
+                return new ResourceLeakDetector<T>(resource, samplingInterval) {
+                    @Override
+                    protected boolean needReport() {
+                        return true;
+                    }
+
+                    @Override
+                    protected void reportTracedLeak(String resourceType, String records) {
+                        LEAKS.add(resourceType + records);
+                    }
+
+                    @Override
+                    protected void reportUntracedLeak(String resourceType) {
+                        LEAKS.add(resourceType);
+                    }
+                };
+            }
+        });
+    }
+
+    /**
+     * 反复GC并分配buffer，让已经不可达的泄漏buffer被检测器发现并上报
+     * @return 截至目前上报的泄漏数量
+     * */
+    static int detect(){
+        for(int i = 0;i < 5;i++){
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            for(int j = 0;j < 100;j++){
+                ByteBuf probe = PooledByteBufAllocator.DEFAULT.directBuffer(16);
+                probe.release();
+            }
+        }
+        return LEAKS.size();
+    }
+
+    private LeakRecorder(){
+    }
+}
@@ -0,0 +1,168 @@
+package IO;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.util.CharsetUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 回显处理器的引用计数测试，PARANOID泄漏检测下运行
+ * 每个测试结束时检查：入站buffer引用计数归零，泄漏检测器没有上报
+ * @author fuhaifei
+ * */
+public class NettyServerHandlerTest {
+
+    static {
+        LeakRecorder.install();
+    }
+
+    @Before
+    public void clearLeaks(){
+        LeakRecorder.detect();
+        LeakRecorder.LEAKS.clear();
+    }
+
+    private static EmbeddedChannel channel(NettyServerHandler handler){
+        return new EmbeddedChannel(new LineBasedFrameDecoder(NettyEchoServer.MAX_FRAME_LENGTH, false, true), handler);
+    }
+
+    private static ByteBuf pooled(String text){
+        ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer();
+        buf.writeCharSequence(text, CharsetUtil.UTF_8);
+        return buf;
+    }
+
+    //读出所有响应并释放
+    private static List<String> drain(EmbeddedChannel channel){
+        List<String> responses = new ArrayList<>();
+        ByteBuf out;
+        while((out = channel.readOutbound()) != null){
+            responses.add(out.toString(CharsetUtil.UTF_8));
+            assertTrue(out.release());
+        }
+        return responses;
+    }
+
+    private static void assertNoLeaks(){
+        int leaks = LeakRecorder.detect();
+        assertEquals(LeakRecorder.LEAKS.toString(), 0, leaks);
+    }
+
+    @Test
+    public void echoWritesEachLineBack(){
+        EmbeddedChannel channel = channel(NettyServerHandler.INSTANCE);
+        ByteBuf in = pooled("hello\nworld\r\n");
+        in.retain();
+        channel.writeInbound(in);
+        assertEquals(List.of("hello\n", "world\r\n"), drain(channel));
+        //测试自己retain的一次，其余引用已由出站方向释放
+        assertEquals(1, in.refCnt());
+        in.release();
+        assertFalse(channel.finish());
+        assertNoLeaks();
+    }
+
+    @Test
+    public void composedResponseSharesRequestMemory(){
+        EmbeddedChannel channel = channel(new NettyServerHandler("echo:".getBytes()));
+        ByteBuf in = pooled("hello\r\n");
+        in.retain();
+        channel.writeInbound(in);
+
+        CompositeByteBuf out = channel.readOutbound();
+        assertEquals("echo:hello\n", out.toString(CharsetUtil.UTF_8));
+        assertEquals(3, out.numComponents());
+        //body是请求buffer的切片，没有拷贝：修改请求内容后响应随之变化
+        in.setByte(0, 'j');
+        assertEquals("echo:jello\n", out.toString(CharsetUtil.UTF_8));
+        //响应持有请求的一次引用
+        assertEquals(2, in.refCnt());
+        assertTrue(out.release());
+        assertEquals(1, in.refCnt());
+        in.release();
+        assertNull(channel.readOutbound());
+        assertFalse(channel.finish());
+        assertNoLeaks();
+    }
+
+    @Test
+    public void emptyLineProducesHeaderAndTrailerOnly(){
+        EmbeddedChannel channel = channel(new NettyServerHandler("echo:".getBytes()));
+        channel.writeInbound(pooled("\n"));
+        assertEquals(List.of("echo:\n"), drain(channel));
+        assertFalse(channel.finish());
+        assertNoLeaks();
+    }
+
+    @Test
+    public void contentLengthStripsDelimiter(){
+        assertEquals(3, contentLength("abc\n"));
+        assertEquals(3, contentLength("abc\r\n"));
+        assertEquals(3, contentLength("abc"));
+        assertEquals(0, contentLength("\r\n"));
+    }
+
+    private static int contentLength(String text){
+        ByteBuf buf = pooled(text);
+        try {
+            return NettyServerHandler.contentLength(buf);
+        } finally {
+            buf.release();
+        }
+    }
+
+    /**
+     * 大量请求（多行合并在一个入站buffer中、一行被拆到两个入站buffer中）经过两种回显方式，
+     * 所有响应释放后不应有任何泄漏
+     * */
+    @Test
+    public void noLeaksUnderLoad(){
+        EmbeddedChannel plain = channel(NettyServerHandler.INSTANCE);
+        EmbeddedChannel composed = channel(new NettyServerHandler("echo:".getBytes()));
+        int batches = 2_000;
+        int linesPerBatch = 50;
+        long responses = 0;
+        for(int i = 0;i < batches;i++){
+            StringBuilder batch = new StringBuilder();
+            for(int j = 0;j < linesPerBatch;j++){
+                batch.append("request-").append(i).append('-').append(j).append('\n');
+            }
+            String text = batch.toString();
+            //从中间切开，最后一行跨两个buffer，走LineBasedFrameDecoder的累积路径
+            int cut = text.length() / 2 + 3;
+            for(EmbeddedChannel channel : new EmbeddedChannel[]{plain, composed}){
+                channel.writeInbound(pooled(text.substring(0, cut)));
+                channel.writeInbound(pooled(text.substring(cut)));
+                responses += drain(channel).size();
+            }
+        }
+        assertEquals(2L * batches * linesPerBatch, responses);
+        assertFalse(plain.finish());
+        assertFalse(composed.finish());
+        assertNoLeaks();
+    }
+
+    //检测手段本身有效：故意泄漏一个buffer，检测器必须能发现
+    @Test
+    public void detectorReportsIntentionalLeak(){
+        leakOne();
+        assertTrue(LeakRecorder.detect() > 0);
+        LeakRecorder.LEAKS.clear();
+    }
+
+    private static void leakOne(){
+        pooled("leaked");
+    }
+}
@@ -0,0 +1,58 @@
+package IO;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * AIO服务器 vs 单线程Reactor：相同的按行回显协议，比较吞吐量、延迟分位数和每连接内存
+ *  * 两者的业务逻辑都在IO线程中直接执行（Reactor的业务执行器为Runnable::run）
+ *  * AIO分别用1个IO线程（与SingleReactor对等）和CPU核数个IO线程各跑一轮
+ *  * 每个服务器先用少量连接预热（JIT），再跑正式的一轮
+ * 运行：java IO.AioBenchmark [连接数] [每连接往返次数] [请求字节数]
+ * @author fuhaifei
+ * */
+public class AioBenchmark {
+
+    static final int REACTOR_PORT = 19092;
+    static final int AIO_PORT = 19093;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+        int roundTrips = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int payloadSize = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int warmupConnections = Math.min(connections, 500);
+        List<EchoBenchmark.Result> results = new ArrayList<>();
+
+        ReactorServerDemo reactorServer = new ReactorServerDemo(EchoBenchmark.ECHO, Runnable::run).idleTimeout(0, 0);
+        Thread reactorThread = new Thread(reactorServer.new SingleReactor(REACTOR_PORT), "single-reactor");
+        reactorThread.start();
+        InetSocketAddress reactorAddress = new InetSocketAddress("127.0.0.1", REACTOR_PORT);
+        EchoBenchmark.run("warmup", reactorAddress, warmupConnections, roundTrips, payloadSize);
+        results.add(EchoBenchmark.run("SingleReactor", reactorAddress, connections, roundTrips, payloadSize));
+        reactorThread.interrupt();
+        reactorThread.join();
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] threadCounts = cores > 1 ? new int[]{1, cores} : new int[]{1};
+        for(int i = 0;i < threadCounts.length;i++){
+            int port = AIO_PORT + i;
+            AsynchronousChannelGroup group = AioServer.newGroup(threadCounts[i]);
+            try (AioServer server = new AioServer(port, EchoBenchmark.ECHO, group).idleTimeout(0, 0)) {
+                server.start();
+                InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+                EchoBenchmark.run("warmup", address, warmupConnections, roundTrips, payloadSize);
+                results.add(EchoBenchmark.run("AioServer-" + threadCounts[i] + "t", address, connections, roundTrips,
+                        payloadSize));
+            } finally {
+                group.shutdownNow();
+            }
+        }
+
+        System.out.println(EchoBenchmark.Result.header());
+        for(EchoBenchmark.Result result : results){
+            System.out.println(result);
+        }
+    }
+}
@@ -0,0 +1,504 @@
+package IO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 基于NIO.2（AIO）的服务器，与ReactorServerDemo使用相同的FrameDecoder + BusinessHandler/HandlerContext
+ *  * Proactor模式：提交读/写操作时附带CompletionHandler，操作完成后由AsynchronousChannelGroup的线程回调
+ *      * Linux下JDK用epoll模拟异步IO，本质上仍然是Reactor，只是事件循环由JDK维护
+ *      * 多个AioServer可以共享同一个AsynchronousChannelGroup，即共享同一组IO线程
+ *  * 读：每个连接持有一个池化读缓冲，读操作挂起期间必须持有（Reactor只在可读时借用），连接关闭时归还
+ *      * 读完成后在回调线程中拆帧并调用业务逻辑，然后提交下一次读
+ *      * 待写字节超过高水位时不再提交读，写到低水位以下再恢复
+ *      * 读操作的超时即读空闲超时，写操作的超时即写空闲超时，超时后关闭连接
+ *  * 写：同一时刻只有一个写操作在进行，其余排队；队列头部连续的ByteBuffer合并为一次聚集写
+ *  * 文件：按块读入池化缓冲后写socket
+ *      * writeFile(Path)使用AsynchronousFileChannel读取，读文件也不占用IO线程
+ *      * writeFile(FileChannel)没有异步读取方式，在回调线程中按位置读取（数据通常已经在page cache中）
+ * @author fuhaifei
+ * */
+public class AioServer implements Closeable {
+    private static Logger logger = LoggerFactory.getLogger(AioServer.class.getName());
+
+    static final int FILE_CHUNK_SIZE = 64 * 1024;
+
+    private static final CompletionHandler<Integer, Connection> READ_COMPLETION = new CompletionHandler<>() {
+        @Override
+        public void completed(Integer read, Connection connection) {
+            connection.onRead(read);
+        }
+
+        @Override
+        public void failed(Throwable exc, Connection connection) {
+            connection.onReadFailed(exc);
+        }
+    };
+
+    private static final CompletionHandler<Long, Connection> WRITE_COMPLETION = new CompletionHandler<>() {
+        @Override
+        public void completed(Long written, Connection connection) {
+            connection.onWrite(written);
+        }
+
+        @Override
+        public void failed(Throwable exc, Connection connection) {
+            connection.onWriteFailed(exc);
+        }
+    };
+
+    private static final CompletionHandler<Integer, Connection> FILE_READ_COMPLETION = new CompletionHandler<>() {
+        @Override
+        public void completed(Integer read, Connection connection) {
+            connection.onFileRead(read);
+        }
+
+        @Override
+        public void failed(Throwable exc, Connection connection) {
+            connection.onWriteFailed(exc);
+        }
+    };
+
+    private final AsynchronousChannelGroup group;
+    private final boolean ownGroup;
+    private final AsynchronousServerSocketChannel serverChannel;
+    private final BusinessHandler businessHandler;
+    private final Supplier<FrameDecoder> decoderFactory;
+    private final DirectBufferPool bufferPool = DirectBufferPool.DEFAULT;
+    private final ReactorMetrics metrics;
+    //0表示不检测
+    long readIdleTimeoutMillis = 60_000;
+    long writeIdleTimeoutMillis = 30_000;
+    private volatile boolean closed;
+
+    //独占一个IO线程数为CPU核数的group，关闭服务器时一起关闭
+    public AioServer(int port, BusinessHandler businessHandler) throws IOException {
+        this(port, businessHandler, newGroup(Runtime.getRuntime().availableProcessors()), true);
+    }
+
+    //共享外部的group，关闭服务器时不关闭group
+    public AioServer(int port, BusinessHandler businessHandler, AsynchronousChannelGroup group) throws IOException {
+        this(port, businessHandler, group, false);
+    }
+
+    private AioServer(int port, BusinessHandler businessHandler, AsynchronousChannelGroup group, boolean ownGroup)
+            throws IOException {
+        this.businessHandler = businessHandler;
+        this.group = group;
+        this.ownGroup = ownGroup;
+        this.decoderFactory = () -> new FrameDecoder.LineFrameDecoder(bufferPool, ReactorServerDemo.MAX_FRAME_LENGTH);
+        this.serverChannel = AsynchronousServerSocketChannel.open(group);
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        this.metrics = new ReactorMetrics("AioServer-" + port);
+    }
+
+    public static AsynchronousChannelGroup newGroup(int threads) throws IOException {
+        AtomicInteger index = new AtomicInteger();
+        return AsynchronousChannelGroup.withFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "aio-worker-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    //需要在start()前设置
+    public AioServer idleTimeout(long readIdleTimeoutMillis, long writeIdleTimeoutMillis){
+        this.readIdleTimeoutMillis = readIdleTimeoutMillis;
+        this.writeIdleTimeoutMillis = writeIdleTimeoutMillis;
+        return this;
+    }
+
+    public void start(){
+        metrics.register();
+        serverChannel.accept(null, acceptCompletion);
+    }
+
+    public ReactorMetrics metrics(){
+        return metrics;
+    }
+
+    private final CompletionHandler<AsynchronousSocketChannel, Void> acceptCompletion = new CompletionHandler<>() {
+        @Override
+        public void completed(AsynchronousSocketChannel channel, Void attachment) {
+            //同一时刻只能有一个accept挂起，先提交下一个accept再处理当前连接
+            serverChannel.accept(null, this);
+            try {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                new Connection(channel).read();
+            } catch (IOException e) {
+                logger.error(Thread.currentThread().getName() + "init connection failed:" + e);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            if(!closed && serverChannel.isOpen()){
+                logger.error(Thread.currentThread().getName() + "accept connection failed:" + exc);
+                serverChannel.accept(null, this);
+            }
+        }
+    };
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverChannel.close();
+        metrics.unregister();
+        if(ownGroup){
+            group.shutdownNow();
+        }
+    }
+
+    //按位置读取文件的一块，AsynchronousFileChannel::read可以直接作为实现
+    @FunctionalInterface
+    private interface ChunkReader{
+        void read(ByteBuffer dst, long position, Connection connection, CompletionHandler<Integer, ? super Connection> handler);
+    }
+
+    private static final class AsyncFileRegion{
+        final Closeable file;
+        final ChunkReader reader;
+        long position;
+        long remaining;
+        ByteBuffer chunk;
+
+        AsyncFileRegion(Closeable file, ChunkReader reader, long position, long count){
+            this.file = file;
+            this.reader = reader;
+            this.position = position;
+            this.remaining = count;
+        }
+    }
+
+    private class Connection implements HandlerContext{
+        final AsynchronousSocketChannel channel;
+        final SocketAddress remoteAddress;
+        final FrameDecoder frameDecoder = decoderFactory.get();
+        //以下状态均在synchronized(this)下访问
+        ByteBuffer readBuffer = bufferPool.acquire(ReactorServerDemo.READ_BUFFER_SIZE);
+        //从提交读操作到回调处理完成之间为true，期间读缓冲和拆帧器归读回调所有
+        boolean readPending;
+        boolean readPaused;
+        boolean inputShutdown;
+        //元素为ByteBuffer（已封帧）或AsyncFileRegion
+        final ArrayDeque<Object> outbound = new ArrayDeque<>();
+        final ByteBuffer[] gather = new ByteBuffer[ReactorServerDemo.MAX_GATHER];
+        long pendingBytes;
+        //有写操作或文件读取在进行，期间队列头部的数据归写回调所有
+        boolean writing;
+        boolean closing;
+        boolean closed;
+
+        Connection(AsynchronousSocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.remoteAddress = channel.getRemoteAddress();
+            metrics.recordAccepted();
+        }
+
+        synchronized void read(){
+            if(closed || readBuffer == null){
+                readPending = false;
+                return;
+            }
+            readPending = true;
+            channel.read(readBuffer, readIdleTimeoutMillis, TimeUnit.MILLISECONDS, this, READ_COMPLETION);
+        }
+
+        void onRead(int read){
+            if(read == -1){
+                //对端关闭了输出方向，写完已排队的响应后关闭
+                synchronized (this){
+                    readPending = false;
+                    inputShutdown = true;
+                    releaseReadBuffer();
+                    if(!writing && outbound.isEmpty()){
+                        closeNow();
+                    }
+                }
+                return;
+            }
+            metrics.recordRead(read);
+            readBuffer.flip();
+            try {
+                frameDecoder.decode(readBuffer, this::dispatch);
+            } catch (FrameDecoder.CorruptedFrameException e) {
+                logger.error(Thread.currentThread().getName() + "corrupted frame from " + remoteAddress + ":" + e);
+                synchronized (this){
+                    readPending = false;
+                    closeNow();
+                }
+                return;
+            }
+            readBuffer.clear();
+            synchronized (this){
+                if(closed || closing){
+                    readPending = false;
+                    releaseReadBuffer();
+                    return;
+                }
+                if(pendingBytes >= ReactorServerDemo.WRITE_HIGH_WATER_MARK){
+                    readPending = false;
+                    readPaused = true;
+                    return;
+                }
+                read();
+            }
+        }
+
+        //在回调线程中直接执行业务逻辑
+        private void dispatch(byte[] request){
+            try {
+                businessHandler.handle(this, request);
+            } catch (RuntimeException e) {
+                logger.error(Thread.currentThread().getName() + "business handler failed:" + e);
+            }
+        }
+
+        void onReadFailed(Throwable exc){
+            if(exc instanceof InterruptedByTimeoutException){
+                logger.info(Thread.currentThread().getName() + "read idle timeout, close " + remoteAddress);
+            }else if(!(exc instanceof ClosedChannelException)){
+                logger.error(Thread.currentThread().getName() + "read from socket failed:" + exc);
+            }
+            synchronized (this){
+                readPending = false;
+                closeNow();
+            }
+        }
+
+        @Override
+        public SocketAddress remoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public void write(byte[] payload) {
+            byte[] framed = frameDecoder.frame(payload);
+            ByteBuffer buffer = bufferPool.acquire(framed.length);
+            buffer.put(framed).flip();
+            enqueue(buffer, framed.length);
+        }
+
+        @Override
+        public void writeFile(FileChannel file, long position, long count) {
+            enqueue(new AsyncFileRegion(file, (dst, pos, connection, handler) -> {
+                try {
+                    handler.completed(file.read(dst, pos), connection);
+                } catch (IOException e) {
+                    handler.failed(e, connection);
+                }
+            }, position, count), 0);
+        }
+
+        @Override
+        public void writeFile(Path file, long position, long count) {
+            try {
+                AsynchronousFileChannel fileChannel = AsynchronousFileChannel.open(file, StandardOpenOption.READ);
+                enqueue(new AsyncFileRegion(fileChannel, fileChannel::read, position, count), 0);
+            } catch (IOException e) {
+                logger.error(Thread.currentThread().getName() + "open file " + file + " failed:" + e);
+                close();
+            }
+        }
+
+        private void enqueue(Object entry, long bytes){
+            synchronized (this){
+                if(closed || closing || (entry instanceof AsyncFileRegion region && region.remaining <= 0)){
+                    discard(entry);
+                    return;
+                }
+                outbound.offer(entry);
+                pendingBytes += bytes;
+                if(writing){
+                    return;
+                }
+                writing = true;
+            }
+            writeNext();
+        }
+
+        //只由持有writing标记的线程调用
+        private void writeNext(){
+            AsyncFileRegion region = null;
+            int count = 0;
+            synchronized (this){
+                for(;;){
+                    if(closed){
+                        writing = false;
+                        closeNow();
+                        return;
+                    }
+                    Object head = outbound.peek();
+                    if(head == null){
+                        writing = false;
+                        if(closing || inputShutdown){
+                            closeNow();
+                        }
+                        return;
+                    }
+                    if(head instanceof ByteBuffer){
+                        for(Object entry : outbound){
+                            if(!(entry instanceof ByteBuffer buffer) || count == gather.length){
+                                break;
+                            }
+                            gather[count++] = buffer;
+                        }
+                        break;
+                    }
+                    region = (AsyncFileRegion) head;
+                    if(region.chunk != null && region.chunk.hasRemaining()){
+                        gather[count++] = region.chunk;
+                        break;
+                    }
+                    if(region.remaining == 0){
+                        outbound.poll();
+                        discard(region);
+                        region = null;
+                        continue;
+                    }
+                    break;
+                }
+            }
+            if(count > 0){
+                channel.write(gather, 0, count, writeIdleTimeoutMillis, TimeUnit.MILLISECONDS, this, WRITE_COMPLETION);
+                return;
+            }
+            if(region.chunk == null){
+                region.chunk = bufferPool.acquire(FILE_CHUNK_SIZE);
+            }
+            region.chunk.clear();
+            region.chunk.limit((int) Math.min(region.chunk.capacity(), region.remaining));
+            region.reader.read(region.chunk, region.position, this, FILE_READ_COMPLETION);
+        }
+
+        void onWrite(long written){
+            metrics.recordWritten(written);
+            boolean resumeRead = false;
+            synchronized (this){
+                Arrays.fill(gather, null);
+                Object head;
+                while((head = outbound.peek()) instanceof ByteBuffer buffer && !buffer.hasRemaining()){
+                    outbound.poll();
+                    pendingBytes -= buffer.limit();
+                    bufferPool.release(buffer);
+                }
+                if(readPaused && pendingBytes <= ReactorServerDemo.WRITE_LOW_WATER_MARK && !closed && !closing){
+                    readPaused = false;
+                    resumeRead = true;
+                }
+            }
+            if(resumeRead){
+                read();
+            }
+            writeNext();
+        }
+
+        void onFileRead(int read){
+            AsyncFileRegion region;
+            synchronized (this){
+                region = (AsyncFileRegion) outbound.peek();
+            }
+            if(read <= 0){
+                onWriteFailed(new IOException("file truncated at " + region.position));
+                return;
+            }
+            region.position += read;
+            region.remaining -= read;
+            region.chunk.flip();
+            writeNext();
+        }
+
+        void onWriteFailed(Throwable exc){
+            if(exc instanceof InterruptedByTimeoutException){
+                logger.info(Thread.currentThread().getName() + "write idle timeout, close " + remoteAddress);
+            }else if(!(exc instanceof ClosedChannelException)){
+                logger.error(Thread.currentThread().getName() + "write to socket failed:" + exc);
+            }
+            synchronized (this){
+                writing = false;
+                closeNow();
+            }
+        }
+
+        //优雅关闭：不再读取新请求，已排队的响应写完后关闭
+        @Override
+        public void close() {
+            synchronized (this){
+                closing = true;
+                if(!writing && outbound.isEmpty()){
+                    closeNow();
+                }
+            }
+        }
+
+        //读写回调正在使用的缓冲由对应回调结束时再归还
+        synchronized void closeNow(){
+            if(!closed){
+                closed = true;
+                metrics.recordClosed();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.error(Thread.currentThread().getName() + "close channel failed:" + e);
+                }
+            }
+            if(!writing){
+                Object entry;
+                while((entry = outbound.poll()) != null){
+                    discard(entry);
+                }
+                pendingBytes = 0;
+            }
+            if(!readPending){
+                releaseReadBuffer();
+            }
+        }
+
+        private void releaseReadBuffer(){
+            if(readBuffer != null){
+                bufferPool.release(readBuffer);
+                readBuffer = null;
+                frameDecoder.release();
+            }
+        }
+
+        private void discard(Object entry){
+            if(entry instanceof ByteBuffer buffer){
+                bufferPool.release(buffer);
+            }else if(entry instanceof AsyncFileRegion region){
+                try {
+                    region.file.close();
+                } catch (IOException ignored) {
+                }
+                bufferPool.release(region.chunk);
+                region.chunk = null;
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package IO;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.*;
@@ -17,7 +18,12 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Objects;
+import java.util.Random;
 import java.util.Scanner;
 
 /**
@@ -91,6 +97,7 @@ import java.util.Scanner;
  *              * Java 7 中引入了 NIO 的改进版 NIO 2,它是异步非阻塞的IO模型
  *              * 异步 IO 是基于事件和回调机制实现的，也就是应用操作之后会直接返回，不会堵塞在那里，
  *                当后台处理完成，操作系统会通知相应的线程进行后续的操作
+ *              * 实现见AioServer（AsynchronousChannelGroup + CompletionHandler），与Reactor的对比见AioBenchmark
  *      * DMA（Direct Memory Access）：代理CPU的读取功能，负责将磁盘中的数据传输到内存中
  *          * 从磁盘->内核空间这一步由DMA代理
  *      * 零拷贝概念
@@ -114,6 +121,7 @@ import java.util.Scanner;
  *          * 包含八个主要实现类：7种数据类型+MappedByteBuffer(内存映射的ByteBuffer),主要使用ByteBuffer
  *          * 四个关键属性：capacity(容量)+position(读写位置)+limit(读取写入数据的最大上限)+mark(读写位置临时备份)
  *          * Buffer创建时为写模式，通过flip()可以转化为读模式，clear()/compact()方法可以转化回写模式
+ *              * 模式切换容易遗漏或者重复，Reactor中改用读写索引分离的DirectByteBuf（见testDirectByteBuf）
  *          * buffer接口：rewind()/mark()/reset()/clear() 子类中接口:get()/put()/compact()[保留未消费元素的状态转换]
  *          * 所有xxxBuffer均为抽象类，调用acllocate方法创建的为其HeapxxxBuffer子类类型，即默认存储在堆上
  *      * Channel：文件句柄
@@ -186,22 +194,216 @@ public class BasicUse {
         System.out.println(intBuffer.get(0));
         System.out.println(intBuffer.position());
     }
-    
+
+    //DirectByteBuf：读写索引分离，边写边读不需要flip，半包留在缓冲中继续追加
+    @Test
+    public void testDirectByteBuf() throws FrameDecoder.CorruptedFrameException {
+        DirectBufferPool pool = new DirectBufferPool(512, 10, 0, 16, true);
+        DirectByteBuf buf = DirectByteBuf.allocate(pool, 16);
+        buf.writeInt(42).writeBytes("hello".getBytes());
+        int value = buf.readInt();
+        System.out.println(buf + " readInt:" + value);
+        buf.writeBytes(" world".getBytes());
+        DirectByteBuf slice = buf.retainedSlice(buf.readerIndex(), 5);
+        System.out.println("slice:" + slice.toString(StandardCharsets.UTF_8) + ", refCnt:" + buf.refCnt());
+        //超过容量自动扩容：64、128...翻倍，4MB以上每次加4MB
+        buf.writeBytes(new byte[100]);
+        System.out.println("after grow:" + buf + ", slice still valid:" + slice.toString(StandardCharsets.UTF_8));
+        slice.release();
+        buf.release();
+
+        //拆帧：第二行被拆到两次read中，读缓冲直接成为累积缓冲
+        FrameDecoder decoder = new FrameDecoder.LineFrameDecoder(pool, 1024);
+        for(String chunk : new String[]{"first\r\nsec", "ond\nthird\n"}){
+            DirectByteBuf in = DirectByteBuf.allocate(pool, 64);
+            in.writeBytes(chunk.getBytes());
+            decoder.decode(in, frame -> System.out.println("frame:" + new String(frame)));
+            System.out.println("pending bytes:" + decoder.pendingBytes());
+        }
+        decoder.release();
+        System.out.println("leaked buffers:" + pool.reportLeaks());
+    }
+
     @Test
     public void testCopyFile() throws IOException {
-        FileChannel inChannel = new
-                FileInputStream("D:\\CodeProject\\Javabase\\src\\main\\resources\\BasicUse.java").getChannel();
-        FileChannel outChannel = new
-                FileOutputStream("D:\\CodeProject\\Javabase\\src\\main\\resources\\BasicUse2.java").getChannel();
-        
-        ByteBuffer buffer = ByteBuffer.allocate(1024);
-        while(inChannel.read(buffer) != -1){
-            buffer.flip();
-            outChannel.write(buffer);
-            buffer.clear();
+        //按文件大小选择直接内存/mmap/transferTo，代替1KB堆内存buffer的循环读写
+        FileCopier.copy(Paths.get("D:\\CodeProject\\Javabase\\src\\main\\resources\\BasicUse.java"),
+                Paths.get("D:\\CodeProject\\Javabase\\src\\main\\resources\\BasicUse2.java"));
+    }
+    
+    @Test
+    public void testCopyBenchmark() throws IOException {
+        Path dir = Files.createTempDirectory("copy-benchmark");
+        Path src = dir.resolve("src.bin");
+        //256MB随机内容
+        try (FileChannel out = FileChannel.open(src, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ByteBuffer chunk = ByteBuffer.allocate(1024 * 1024);
+            new Random().nextBytes(chunk.array());
+            for(int i = 0;i < 256;i++){
+                chunk.clear();
+                out.write(chunk);
+            }
+        }
+        FileCopier.benchmark(src, dir, 3);
+        Files.delete(src);
+        Files.delete(dir);
+    }
+    
+    @Test
+    public void testMappedLog() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("mapped-log");
+        int writers = 4;
+        int appendsPerWriter = 1_000_000;
+        byte[] event = "event capture payload 0123456789".getBytes(StandardCharsets.UTF_8);
+        try (MappedLog log = new MappedLog(dir, 64 * 1024 * 1024, 100)) {
+            //读线程不加锁地跟随写入
+            Thread tailer = new Thread(() -> {
+                MappedLog.Tailer reader = log.tailer();
+                long count = 0;
+                while(count < (long) writers * appendsPerWriter){
+                    if(reader.poll() != null){
+                        count++;
+                    }else{
+                        Thread.onSpinWait();
+                    }
+                }
+                System.out.println("tailer read " + count + " records");
+            });
+            tailer.start();
+            Thread[] threads = new Thread[writers];
+            long start = System.nanoTime();
+            for(int i = 0;i < writers;i++){
+                threads[i] = new Thread(() -> {
+                    for(int j = 0;j < appendsPerWriter;j++){
+                        log.append(event);
+                    }
+                });
+                threads[i].start();
+            }
+            for(Thread thread : threads){
+                thread.join();
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%d appends in %d ms, %.0f appends/s%n", writers * appendsPerWriter,
+                    elapsed / 1_000_000, writers * appendsPerWriter / (elapsed / 1_000_000_000.0));
+            tailer.join();
+        }
+        try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+            for(Path file : files.toList()){
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+    
+    //段恰好写满：64字节的段放两条28字节的记录（每条32字节），第3条起每次都要滚动到新段
+    @Test(timeout = 10_000)
+    public void testMappedLogExactFill() throws IOException {
+        Path dir = Files.createTempDirectory("mapped-log");
+        int records = 10;
+        try (MappedLog log = new MappedLog(dir, 64, 0)) {
+            for(int i = 0;i < records;i++){
+                byte[] payload = String.format("record-%021d", i).getBytes(StandardCharsets.UTF_8);
+                long offset = log.append(payload);
+                Assert.assertEquals(i * 32L, offset);
+            }
+            MappedLog.Tailer reader = log.tailer();
+            for(int i = 0;i < records;i++){
+                byte[] record = reader.poll();
+                Assert.assertNotNull("record " + i + " missing", record);
+                Assert.assertEquals(String.format("record-%021d", i), new String(record, StandardCharsets.UTF_8));
+            }
+            Assert.assertNull(reader.poll());
+        }
+        //重新打开时最后一个段恰好写满，下一次写入同样要滚动
+        try (MappedLog log = new MappedLog(dir, 64, 0)) {
+            Assert.assertEquals(records * 32L, log.append(new byte[28]));
+        }
+        try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+            for(Path file : files.toList()){
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    //创建新段失败时每次写入都抛出异常而不是卡住，目录恢复后滚动成功
+    @Test(timeout = 10_000)
+    public void testMappedLogRollFailure() throws IOException {
+        Path dir = Files.createTempDirectory("mapped-log");
+        try (MappedLog log = new MappedLog(dir, 64, 0)) {
+            log.append(new byte[28]);
+            log.append(new byte[28]);
+            //段文件已经映射，删除后仍可访问，但新段无法创建
+            try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+                for(Path file : files.toList()){
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+            for(int i = 0;i < 3;i++){
+                try {
+                    log.append(new byte[28]);
+                    Assert.fail("roll should fail without the log directory");
+                } catch (UncheckedIOException expected) {
+                }
+            }
+            Files.createDirectories(dir);
+            Assert.assertEquals(64L, log.append(new byte[28]));
+        }
+        try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+            for(Path file : files.toList()){
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testUdpIngest() throws IOException, InterruptedException {
+        int senders = 4;
+        int packetsPerSender = 2_000_000;
+        int batch = 64;
+        try (UdpIngestEngine engine = new UdpIngestEngine(new InetSocketAddress("127.0.0.1", 0), 4, batch, 512,
+                b -> {})) {
+            engine.start();
+            System.out.println("receiver threads:" + engine.receiverThreads() + ", port:" + engine.localAddress().getPort());
+            Thread[] threads = new Thread[senders];
+            long start = System.nanoTime();
+            for(int i = 0;i < senders;i++){
+                //不同的发送socket源端口不同，SO_REUSEPORT按四元组把它们分到不同的接收线程
+                threads[i] = new Thread(() -> {
+                    ByteBuffer[] packets = new ByteBuffer[batch];
+                    for(int j = 0;j < batch;j++){
+                        packets[j] = ByteBuffer.wrap(("cpu.load,host=node" + j + " value=0.75").getBytes());
+                    }
+                    try (UdpIngestEngine.Sender sender = new UdpIngestEngine.Sender(engine.localAddress())) {
+                        for(int sent = 0;sent < packetsPerSender;sent += batch){
+                            for(ByteBuffer packet : packets){
+                                packet.rewind();
+                            }
+                            sender.send(packets, 0, batch);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                threads[i].start();
+            }
+            for(Thread thread : threads){
+                thread.join();
+            }
+            //等待接收队列中剩余的报文处理完
+            long received;
+            do {
+                received = engine.packets();
+                Thread.sleep(200);
+            } while(engine.packets() != received);
+            long elapsed = System.nanoTime() - start - 200_000_000L;
+            long total = (long) senders * packetsPerSender;
+            System.out.printf("received %d/%d packets in %d batches, %.0f packets/s, loss %.2f%%%n", received, total,
+                    engine.batches(), received / (elapsed / 1_000_000_000.0), (total - received) * 100.0 / total);
         }
-        inChannel.close();
-        outChannel.close();
     }
     
     public static void testSocketTcp(){
@@ -245,6 +447,27 @@ public class BasicUse {
             throw new RuntimeException(e);
         }
     }
+    //伪异步IO：有界线程池处理连接，协议与ReactorServerDemo相同（按行拆帧 + 回显）
+    public static void testSocketTcpPool() throws IOException {
+        PooledBioServer server = new PooledBioServer(80, ReactorServerDemo.ECHO_HANDLER);
+        Thread serverThread = new Thread(server, "bioAcceptor");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(80));
+            OutputStream outputStream = socket.getOutputStream();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            Scanner scanner = new Scanner(System.in);
+            String line;
+            while(!Objects.equals(line = scanner.nextLine(), "")){
+                outputStream.write((line + "\n").getBytes());
+                System.out.println(reader.readLine());
+            }
+        } finally {
+            server.close();
+        }
+    }
+    
     public static void testSocketTcpChannel(){
         //服务器线程
         Thread serverThread = new Thread(() ->{
@@ -0,0 +1,13 @@
+package IO;
+
+/**
+ * 业务处理逻辑
+ *  * 由业务线程池（而不是Selector线程）调用，可以执行耗时/阻塞操作
+ *  * 处理结果通过HandlerContext写回，由连接所属的Reactor线程负责真正的socket写入
+ *  * 同一连接上的请求按到达顺序串行调用，不同连接之间并发调用
+ * @author fuhaifei
+ * */
+@FunctionalInterface
+public interface BusinessHandler {
+    void handle(HandlerContext ctx, byte[] request);
+}
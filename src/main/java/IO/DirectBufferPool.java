@@ -0,0 +1,194 @@
+package IO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按大小分级的直接内存ByteBuffer池
+ *  * 直接内存：socket读写时不需要再从堆内存拷贝一次到native内存
+ *  * 池化：避免每次读写都allocate，直接内存的分配/回收（Cleaner）代价比堆内存更高
+ *  * 分级：512B起每级翻倍，申请时向上取整到最近的级别，超过最大级别的申请不池化
+ *  * 两级缓存：线程本地缓存（无竞争） -> 全局共享队列（ConcurrentLinkedQueue） -> 新分配
+ *  * 泄漏检测：开启后记录每个未归还buffer的申请栈，可以通过reportLeaks()输出，同时能发现重复归还
+ * 使用方式：
+ *      ByteBuffer buffer = pool.acquire(1024);   //capacity >= 1024，处于写模式
+ *      ...
+ *      pool.release(buffer);                     //归还后不能再使用
+ * @author fuhaifei
+ * */
+public class DirectBufferPool {
+    private static Logger logger = LoggerFactory.getLogger(DirectBufferPool.class.getName());
+
+    public static final DirectBufferPool DEFAULT = new DirectBufferPool(512, 10, 32, 1024,
+            Boolean.getBoolean("IO.bufferPool.leakDetection"));
+
+    private final int[] sizeClasses;
+    private final Queue<ByteBuffer>[] shared;
+    private final AtomicInteger[] sharedCount;
+    private final int sharedCapacity;
+    private final int threadCacheCapacity;
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCaches;
+
+    private final boolean leakDetection;
+    //ByteBuffer的equals/hashCode基于内容，必须按引用区分
+    private final Map<ByteBuffer, Throwable> tracked = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private final LongAdder threadCacheHits = new LongAdder();
+    private final LongAdder sharedHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder released = new LongAdder();
+
+    /**
+     * @param minSize 最小级别大小
+     * @param classCount 级别数量，最大级别为minSize << (classCount - 1)
+     * @param threadCacheCapacity 每个线程每个级别最多缓存的buffer数量，0表示不使用线程本地缓存
+     *                            （虚拟线程一个连接一个线程，线程本地缓存无法复用，只会让每个连接多占内存）
+     * @param sharedCapacity 全局队列每个级别最多缓存的buffer数量
+     * @param leakDetection 是否开启泄漏检测（记录申请栈，有额外开销）
+     * */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public DirectBufferPool(int minSize, int classCount, int threadCacheCapacity, int sharedCapacity, boolean leakDetection){
+        this.sizeClasses = new int[classCount];
+        this.shared = new Queue[classCount];
+        this.sharedCount = new AtomicInteger[classCount];
+        for(int i = 0;i < classCount;i++){
+            sizeClasses[i] = minSize << i;
+            shared[i] = new ConcurrentLinkedQueue<>();
+            sharedCount[i] = new AtomicInteger();
+        }
+        this.threadCacheCapacity = threadCacheCapacity;
+        this.sharedCapacity = sharedCapacity;
+        this.leakDetection = leakDetection;
+        this.threadCaches = ThreadLocal.withInitial(() -> {
+            ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[classCount];
+            for(int i = 0;i < classCount;i++){
+                caches[i] = new ArrayDeque<>();
+            }
+            return caches;
+        });
+    }
+
+    public ByteBuffer acquire(int size){
+        acquired.increment();
+        int index = sizeClassIndex(size);
+        ByteBuffer buffer = null;
+        if(index >= 0){
+            if(threadCacheCapacity > 0 && (buffer = threadCaches.get()[index].pollLast()) != null){
+                threadCacheHits.increment();
+            }else if((buffer = shared[index].poll()) != null){
+                sharedCount[index].decrementAndGet();
+                sharedHits.increment();
+            }
+        }
+        if(buffer == null){
+            misses.increment();
+            buffer = ByteBuffer.allocateDirect(index >= 0 ? sizeClasses[index] : size);
+        }
+        buffer.clear();
+        if(leakDetection){
+            tracked.put(buffer, new Throwable("buffer acquired here, capacity:" + buffer.capacity()));
+        }
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer){
+        if(buffer == null){
+            return;
+        }
+        if(leakDetection && tracked.remove(buffer) == null){
+            logger.error(Thread.currentThread().getName() + "release a buffer not acquired from pool or released twice",
+                    new Throwable());
+            return;
+        }
+        released.increment();
+        int index = sizeClassIndex(buffer.capacity());
+        //超过最大级别的buffer不回收，交给GC
+        if(index < 0 || sizeClasses[index] != buffer.capacity()){
+            return;
+        }
+        buffer.clear();
+        ArrayDeque<ByteBuffer> cache = threadCacheCapacity > 0 ? threadCaches.get()[index] : null;
+        if(cache != null && cache.size() < threadCacheCapacity){
+            cache.offerLast(buffer);
+        }else if(sharedCount[index].incrementAndGet() <= sharedCapacity){
+            shared[index].offer(buffer);
+        }else{
+            sharedCount[index].decrementAndGet();
+        }
+    }
+
+    //返回能容纳size的最小级别，超过最大级别返回-1
+    private int sizeClassIndex(int size){
+        for(int i = 0;i < sizeClasses.length;i++){
+            if(size <= sizeClasses[i]){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int maxPooledSize(){
+        return sizeClasses[sizeClasses.length - 1];
+    }
+
+    /**
+     * 输出所有未归还buffer的申请栈，返回未归还数量
+     * 在连接全部关闭后调用，结果不为0说明存在泄漏
+     * */
+    public int reportLeaks(){
+        if(!leakDetection){
+            logger.info("leak detection disabled, outstanding buffers:" + stats().outstanding);
+            return (int) stats().outstanding;
+        }
+        List<Throwable> leaks;
+        synchronized (tracked){
+            leaks = new ArrayList<>(tracked.values());
+        }
+        for(Throwable leak : leaks){
+            logger.error("LEAK: direct buffer not released", leak);
+        }
+        return leaks.size();
+    }
+
+    public Stats stats(){
+        return new Stats(threadCacheHits.sum(), sharedHits.sum(), misses.sum(), acquired.sum() - released.sum());
+    }
+
+    public static class Stats{
+        public final long threadCacheHits;
+        public final long sharedHits;
+        public final long misses;
+        public final long outstanding;
+
+        Stats(long threadCacheHits, long sharedHits, long misses, long outstanding){
+            this.threadCacheHits = threadCacheHits;
+            this.sharedHits = sharedHits;
+            this.misses = misses;
+            this.outstanding = outstanding;
+        }
+
+        public double hitRatio(){
+            long total = threadCacheHits + sharedHits + misses;
+            return total == 0 ? 0 : (double) (threadCacheHits + sharedHits) / total;
+        }
+
+        @Override
+        public String toString() {
+            return "threadCacheHits=" + threadCacheHits + ", sharedHits=" + sharedHits + ", misses=" + misses +
+                    ", outstanding=" + outstanding + ", hitRatio=" + String.format("%.4f", hitRatio());
+        }
+    }
+}
@@ -0,0 +1,527 @@
+package IO;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * 仿照Netty ByteBuf的缓冲区：一块池化直接内存 + 读写两个索引，替代需要flip()/clear()切换模式的ByteBuffer
+ *  * 0 <= readerIndex <= writerIndex <= capacity
+ *      * [0, readerIndex)：已读，可以通过discardReadBytes()回收
+ *      * [readerIndex, writerIndex)：可读
+ *      * [writerIndex, capacity)：可写
+ *  * 读写各自推进自己的索引，同一个buffer可以一边写入一边读出，不存在"当前是读模式还是写模式"的问题
+ *  * get/set按绝对位置访问，不移动索引；read/write从索引处访问并推进索引
+ *  * 自动扩容（与Netty的calculateNewCapacity相同）：
+ *      * 小于CALCULATE_THRESHOLD（4MB）时，从64开始翻倍到不小于所需容量的最小二的幂次
+ *      * 大于阈值时每次增加一个阈值，避免大buffer翻倍浪费内存
+ *  * 引用计数：新建时为1，retain()加一，release()减一，减到0时内存归还DirectBufferPool，之后任何访问都会抛出异常
+ *  * 派生buffer：slice()/duplicate()与原buffer共享内存和引用计数，有独立的读写索引，不能扩容
+ *    retainedSlice()/retainedDuplicate()会先retain，派生buffer可以单独release
+ * 非线程安全（引用计数除外），跨线程传递时由调用方保证可见性
+ * @author fuhaifei
+ * */
+public final class DirectByteBuf {
+
+    static final int CALCULATE_THRESHOLD = 4 * 1024 * 1024;
+    private static final int MIN_GROW_CAPACITY = 64;
+
+    private static final AtomicIntegerFieldUpdater<DirectByteBuf> REF_CNT =
+            AtomicIntegerFieldUpdater.newUpdater(DirectByteBuf.class, "refCnt");
+
+    //内存和引用计数只在root上维护，派生buffer的root指向原buffer
+    private final DirectByteBuf root;
+    private final DirectBufferPool pool;
+    private ByteBuffer memory;
+    private volatile int refCnt;
+
+    //本buffer的0对应root内存中的offset
+    private final int offset;
+    private int capacity;
+    private final int maxCapacity;
+    private int readerIndex;
+    private int writerIndex;
+
+    //IO操作复用的内存视图，避免每次读写socket都duplicate一次
+    private ByteBuffer tmpNioBuffer;
+    private ByteBuffer tmpNioBufferSource;
+
+    private DirectByteBuf(DirectBufferPool pool, ByteBuffer memory, int capacity, int maxCapacity){
+        this.root = this;
+        this.pool = pool;
+        this.memory = memory;
+        this.refCnt = 1;
+        this.offset = 0;
+        this.capacity = capacity;
+        this.maxCapacity = maxCapacity;
+    }
+
+    private DirectByteBuf(DirectByteBuf root, int offset, int capacity, int readerIndex, int writerIndex){
+        this.root = root;
+        this.pool = null;
+        this.offset = offset;
+        this.capacity = capacity;
+        this.maxCapacity = capacity;
+        this.readerIndex = readerIndex;
+        this.writerIndex = writerIndex;
+    }
+
+    public static DirectByteBuf allocate(DirectBufferPool pool, int initialCapacity){
+        return allocate(pool, initialCapacity, Integer.MAX_VALUE);
+    }
+
+    public static DirectByteBuf allocate(DirectBufferPool pool, int initialCapacity, int maxCapacity){
+        if(initialCapacity < 0 || initialCapacity > maxCapacity){
+            throw new IllegalArgumentException("initialCapacity: " + initialCapacity + ", maxCapacity: " + maxCapacity);
+        }
+        return new DirectByteBuf(pool, pool.acquire(initialCapacity), initialCapacity, maxCapacity);
+    }
+
+    /**
+     * 包装外部ByteBuffer的[position, limit)，不拷贝也不转移所有权：release()不会归还内存，不能扩容
+     * 用于把调用方已有的数据（如BIO读到的byte[]）交给按DirectByteBuf编写的解码逻辑
+     * */
+    public static DirectByteBuf wrap(ByteBuffer buffer){
+        int length = buffer.remaining();
+        DirectByteBuf wrapped = new DirectByteBuf(null, buffer.slice(), length, length);
+        wrapped.writerIndex = length;
+        return wrapped;
+    }
+
+    // ---------------------------------------------------------------- 索引
+
+    public int capacity(){
+        return capacity;
+    }
+
+    public int maxCapacity(){
+        return maxCapacity;
+    }
+
+    public int readerIndex(){
+        return readerIndex;
+    }
+
+    public DirectByteBuf readerIndex(int readerIndex){
+        if(readerIndex < 0 || readerIndex > writerIndex){
+            throw new IndexOutOfBoundsException("readerIndex: " + readerIndex + ", writerIndex: " + writerIndex);
+        }
+        this.readerIndex = readerIndex;
+        return this;
+    }
+
+    public int writerIndex(){
+        return writerIndex;
+    }
+
+    public DirectByteBuf writerIndex(int writerIndex){
+        if(writerIndex < readerIndex || writerIndex > capacity){
+            throw new IndexOutOfBoundsException("writerIndex: " + writerIndex + ", readerIndex: " + readerIndex +
+                    ", capacity: " + capacity);
+        }
+        this.writerIndex = writerIndex;
+        return this;
+    }
+
+    public int readableBytes(){
+        return writerIndex - readerIndex;
+    }
+
+    public boolean isReadable(){
+        return writerIndex > readerIndex;
+    }
+
+    //不扩容的前提下还能写入的字节数
+    public int writableBytes(){
+        return capacity - writerIndex;
+    }
+
+    public DirectByteBuf clear(){
+        readerIndex = writerIndex = 0;
+        return this;
+    }
+
+    public DirectByteBuf skipBytes(int length){
+        checkReadable(length);
+        readerIndex += length;
+        return this;
+    }
+
+    /**
+     * 把可读部分移动到buffer头部，回收已读空间
+     * 会拷贝可读字节，派生buffer与原buffer共享内存，移动后派生buffer看到的内容随之改变
+     * */
+    public DirectByteBuf discardReadBytes(){
+        ensureAccessible();
+        if(readerIndex == 0){
+            return this;
+        }
+        if(readerIndex != writerIndex){
+            root.memory.slice(offset, capacity).position(readerIndex).limit(writerIndex).compact();
+        }
+        writerIndex -= readerIndex;
+        readerIndex = 0;
+        return this;
+    }
+
+    /**
+     * 保证还能写入minWritableBytes字节，容量不足时按扩容策略扩容
+     * 扩容时从池中申请新内存并拷贝原内容，旧内存归还池；派生buffer通过root访问内存，扩容后依然有效
+     * @throws IndexOutOfBoundsException 超过maxCapacity
+     * */
+    public DirectByteBuf ensureWritable(int minWritableBytes){
+        ensureAccessible();
+        if(minWritableBytes <= writableBytes()){
+            return this;
+        }
+        if(minWritableBytes > maxCapacity - writerIndex){
+            throw new IndexOutOfBoundsException("writerIndex(" + writerIndex + ") + minWritableBytes(" +
+                    minWritableBytes + ") exceeds maxCapacity(" + maxCapacity + "): " + this);
+        }
+        if(root != this || pool == null){
+            throw new UnsupportedOperationException("derived or wrapped buffer can not grow: " + this);
+        }
+        int newCapacity = calculateNewCapacity(writerIndex + minWritableBytes, maxCapacity);
+        ByteBuffer bigger = pool.acquire(newCapacity);
+        bigger.put(0, memory, 0, capacity);
+        pool.release(memory);
+        memory = bigger;
+        capacity = newCapacity;
+        return this;
+    }
+
+    static int calculateNewCapacity(int minNewCapacity, int maxCapacity){
+        if(minNewCapacity == CALCULATE_THRESHOLD){
+            return CALCULATE_THRESHOLD;
+        }
+        if(minNewCapacity > CALCULATE_THRESHOLD){
+            int newCapacity = minNewCapacity / CALCULATE_THRESHOLD * CALCULATE_THRESHOLD;
+            if(newCapacity > maxCapacity - CALCULATE_THRESHOLD){
+                return maxCapacity;
+            }
+            return newCapacity + CALCULATE_THRESHOLD;
+        }
+        int newCapacity = MIN_GROW_CAPACITY;
+        while(newCapacity < minNewCapacity){
+            newCapacity <<= 1;
+        }
+        return Math.min(newCapacity, maxCapacity);
+    }
+
+    // ---------------------------------------------------------------- 绝对位置访问
+
+    public byte getByte(int index){
+        checkIndex(index, 1);
+        return root.memory.get(offset + index);
+    }
+
+    public short getUnsignedByte(int index){
+        return (short) (getByte(index) & 0xFF);
+    }
+
+    public int getUnsignedShort(int index){
+        checkIndex(index, 2);
+        return root.memory.getShort(offset + index) & 0xFFFF;
+    }
+
+    public int getInt(int index){
+        checkIndex(index, 4);
+        return root.memory.getInt(offset + index);
+    }
+
+    public long getUnsignedInt(int index){
+        return getInt(index) & 0xFFFFFFFFL;
+    }
+
+    public DirectByteBuf getBytes(int index, byte[] dst, int dstIndex, int length){
+        checkIndex(index, length);
+        root.memory.get(offset + index, dst, dstIndex, length);
+        return this;
+    }
+
+    public DirectByteBuf setByte(int index, int value){
+        checkIndex(index, 1);
+        root.memory.put(offset + index, (byte) value);
+        return this;
+    }
+
+    public DirectByteBuf setShort(int index, int value){
+        checkIndex(index, 2);
+        root.memory.putShort(offset + index, (short) value);
+        return this;
+    }
+
+    public DirectByteBuf setInt(int index, int value){
+        checkIndex(index, 4);
+        root.memory.putInt(offset + index, value);
+        return this;
+    }
+
+    public DirectByteBuf setBytes(int index, byte[] src, int srcIndex, int length){
+        checkIndex(index, length);
+        root.memory.put(offset + index, src, srcIndex, length);
+        return this;
+    }
+
+    //在[fromIndex, toIndex)中查找value，找不到返回-1
+    public int indexOf(int fromIndex, int toIndex, byte value){
+        checkIndex(fromIndex, toIndex - fromIndex);
+        ByteBuffer memory = root.memory;
+        for(int i = fromIndex;i < toIndex;i++){
+            if(memory.get(offset + i) == value){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // ---------------------------------------------------------------- 相对位置读写
+
+    public byte readByte(){
+        checkReadable(1);
+        return getByte(readerIndex++);
+    }
+
+    public int readUnsignedShort(){
+        checkReadable(2);
+        int value = getUnsignedShort(readerIndex);
+        readerIndex += 2;
+        return value;
+    }
+
+    public int readInt(){
+        checkReadable(4);
+        int value = getInt(readerIndex);
+        readerIndex += 4;
+        return value;
+    }
+
+    public DirectByteBuf readBytes(byte[] dst){
+        return readBytes(dst, 0, dst.length);
+    }
+
+    public DirectByteBuf readBytes(byte[] dst, int dstIndex, int length){
+        checkReadable(length);
+        getBytes(readerIndex, dst, dstIndex, length);
+        readerIndex += length;
+        return this;
+    }
+
+    public byte[] readBytes(int length){
+        byte[] bytes = new byte[length];
+        readBytes(bytes, 0, length);
+        return bytes;
+    }
+
+    /**
+     * 把可读字节写入channel，返回实际写出的字节数（非阻塞channel可能为0）
+     * */
+    public int readBytes(GatheringByteChannel out, int length) throws IOException {
+        checkReadable(length);
+        int written = out.write(internalNioBuffer(readerIndex, length));
+        readerIndex += written;
+        return written;
+    }
+
+    public DirectByteBuf writeByte(int value){
+        ensureWritable(1);
+        setByte(writerIndex++, value);
+        return this;
+    }
+
+    public DirectByteBuf writeShort(int value){
+        ensureWritable(2);
+        setShort(writerIndex, value);
+        writerIndex += 2;
+        return this;
+    }
+
+    public DirectByteBuf writeInt(int value){
+        ensureWritable(4);
+        setInt(writerIndex, value);
+        writerIndex += 4;
+        return this;
+    }
+
+    public DirectByteBuf writeBytes(byte[] src){
+        return writeBytes(src, 0, src.length);
+    }
+
+    public DirectByteBuf writeBytes(byte[] src, int srcIndex, int length){
+        ensureWritable(length);
+        setBytes(writerIndex, src, srcIndex, length);
+        writerIndex += length;
+        return this;
+    }
+
+    //写入src的[position, limit)，src的position随之推进
+    public DirectByteBuf writeBytes(ByteBuffer src){
+        int length = src.remaining();
+        ensureWritable(length);
+        root.memory.put(offset + writerIndex, src, src.position(), length);
+        src.position(src.position() + length);
+        writerIndex += length;
+        return this;
+    }
+
+    //写入src的全部可读字节，src的readerIndex随之推进
+    public DirectByteBuf writeBytes(DirectByteBuf src){
+        int length = src.readableBytes();
+        src.ensureAccessible();
+        ensureWritable(length);
+        root.memory.put(offset + writerIndex, src.root.memory, src.offset + src.readerIndex, length);
+        src.readerIndex += length;
+        writerIndex += length;
+        return this;
+    }
+
+    /**
+     * 从channel读入最多length字节，容量不足时先扩容
+     * @return 读到的字节数，对端关闭返回-1
+     * */
+    public int writeBytes(ScatteringByteChannel in, int length) throws IOException {
+        ensureWritable(length);
+        int read = in.read(internalNioBuffer(writerIndex, length));
+        if(read > 0){
+            writerIndex += read;
+        }
+        return read;
+    }
+
+    // ---------------------------------------------------------------- NIO视图
+
+    /**
+     * [index, index + length)的ByteBuffer视图，position/limit即该区间，与本buffer共享内存
+     * 视图对象被本buffer复用，下一次IO操作前有效；需要长期持有时使用nioBuffer()
+     * gathering write时可以把多个buffer的视图组成数组一次写出
+     * */
+    public ByteBuffer internalNioBuffer(int index, int length){
+        checkIndex(index, length);
+        ByteBuffer memory = root.memory;
+        if(tmpNioBufferSource != memory){
+            tmpNioBuffer = memory.duplicate();
+            tmpNioBufferSource = memory;
+        }
+        tmpNioBuffer.clear().position(offset + index).limit(offset + index + length);
+        return tmpNioBuffer;
+    }
+
+    //可读部分的独立ByteBuffer视图，共享内存，position为0
+    public ByteBuffer nioBuffer(){
+        checkIndex(readerIndex, readableBytes());
+        return root.memory.slice(offset + readerIndex, readableBytes());
+    }
+
+    // ---------------------------------------------------------------- 派生buffer
+
+    //可读部分的切片，共享内存和引用计数
+    public DirectByteBuf slice(){
+        return slice(readerIndex, readableBytes());
+    }
+
+    public DirectByteBuf slice(int index, int length){
+        checkIndex(index, length);
+        return new DirectByteBuf(root, offset + index, length, 0, length);
+    }
+
+    public DirectByteBuf retainedSlice(int index, int length){
+        DirectByteBuf slice = slice(index, length);
+        retain();
+        return slice;
+    }
+
+    //完整视图，读写索引为当前值的拷贝
+    public DirectByteBuf duplicate(){
+        ensureAccessible();
+        return new DirectByteBuf(root, offset, capacity, readerIndex, writerIndex);
+    }
+
+    public DirectByteBuf retainedDuplicate(){
+        DirectByteBuf duplicate = duplicate();
+        retain();
+        return duplicate;
+    }
+
+    // ---------------------------------------------------------------- 引用计数
+
+    public int refCnt(){
+        return root.refCnt;
+    }
+
+    public DirectByteBuf retain(){
+        DirectByteBuf root = this.root;
+        for(;;){
+            int current = root.refCnt;
+            if(current <= 0){
+                throw new IllegalStateException("refCnt: " + current + ", increment: 1");
+            }
+            if(REF_CNT.compareAndSet(root, current, current + 1)){
+                return this;
+            }
+        }
+    }
+
+    /**
+     * @return 引用计数减到0、内存已经归还时返回true
+     * */
+    public boolean release(){
+        DirectByteBuf root = this.root;
+        for(;;){
+            int current = root.refCnt;
+            if(current <= 0){
+                throw new IllegalStateException("refCnt: " + current + ", decrement: 1");
+            }
+            if(REF_CNT.compareAndSet(root, current, current - 1)){
+                if(current == 1){
+                    root.deallocate();
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    private void deallocate(){
+        ByteBuffer memory = this.memory;
+        this.memory = null;
+        tmpNioBuffer = tmpNioBufferSource = null;
+        if(pool != null){
+            pool.release(memory);
+        }
+    }
+
+    // ---------------------------------------------------------------- 检查
+
+    private void ensureAccessible(){
+        if(root.refCnt == 0){
+            throw new IllegalStateException("buffer already released, refCnt: 0");
+        }
+    }
+
+    private void checkIndex(int index, int length){
+        ensureAccessible();
+        if(index < 0 || length < 0 || index > capacity - length){
+            throw new IndexOutOfBoundsException("index: " + index + ", length: " + length + ", capacity: " + capacity);
+        }
+    }
+
+    private void checkReadable(int length){
+        if(length < 0 || length > writerIndex - readerIndex){
+            throw new IndexOutOfBoundsException("readerIndex(" + readerIndex + ") + length(" + length +
+                    ") exceeds writerIndex(" + writerIndex + "): " + this);
+        }
+    }
+
+    public String toString(Charset charset){
+        return charset.decode(nioBuffer()).toString();
+    }
+
+    @Override
+    public String toString() {
+        return "DirectByteBuf(ridx: " + readerIndex + ", widx: " + writerIndex + ", cap: " + capacity +
+                (maxCapacity == Integer.MAX_VALUE ? "" : "/" + maxCapacity) + ", refCnt: " + root.refCnt + ")";
+    }
+}
@@ -0,0 +1,220 @@
+package IO;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * 按行回显服务器的压测客户端
+ *  * N个连接，每个连接做M次请求-响应往返，同一连接上收到响应后才发送下一个请求
+ *  * 客户端是单线程Selector，10万连接也只有一个线程，客户端本身不随连接数增加线程
+ *  * 延迟：每次往返的耗时，统计p50/p90/p99/p99.9/max
+ *  * 每连接内存：全部连接建立并各完成一次往返后，GC后堆内存/直接内存的增量除以连接数
+ *      * 客户端与服务器在同一进程，增量中包含客户端的SocketChannel等对象，对所有服务器都一样，比较差值即可
+ * 被测服务器需要把收到的每一行原样写回，即BusinessHandler为ECHO
+ * 连接数超过单个源地址的临时端口数时，客户端轮流绑定127.0.0.x作为源地址（仅限回环地址）
+ * @author fuhaifei
+ * */
+public class EchoBenchmark {
+
+    public static final BusinessHandler ECHO = (ctx, request) -> ctx.write(request);
+
+    static final int PORTS_PER_SOURCE_ADDRESS = 20_000;
+    static final long STALL_TIMEOUT_MILLIS = 30_000;
+
+    /**
+     * @param name 结果中显示的名称
+     * @param connections 并发连接数
+     * @param roundTrips 每个连接的往返次数（不含预热的一次）
+     * @param payloadSize 每个请求的字节数（不含换行符）
+     * */
+    public static Result run(String name, InetSocketAddress address, int connections, int roundTrips,
+                             int payloadSize) throws IOException {
+        byte[] line = new byte[payloadSize + 1];
+        Arrays.fill(line, (byte) 'a');
+        line[payloadSize] = '\n';
+
+        long heapBefore = usedHeap();
+        long directBefore = usedDirect();
+        Client[] clients = new Client[connections];
+        try (Selector selector = Selector.open()) {
+            for(int i = 0;i < connections;i++){
+                SocketChannel channel = SocketChannel.open();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                if(connections > PORTS_PER_SOURCE_ADDRESS && address.getAddress().isLoopbackAddress()){
+                    channel.bind(new InetSocketAddress("127.0.0." + (1 + i / PORTS_PER_SOURCE_ADDRESS), 0));
+                }
+                channel.connect(address);
+                channel.configureBlocking(false);
+                clients[i] = new Client(channel);
+                channel.register(selector, SelectionKey.OP_READ, clients[i]);
+            }
+            //预热一轮：服务器为每个连接分配好读写相关的状态后再统计内存
+            pingPong(selector, clients, 1, line, null);
+            long heapBytes = (usedHeap() - heapBefore) / connections;
+            long directBytes = (usedDirect() - directBefore) / connections;
+
+            long[] latencies = new long[connections * roundTrips];
+            long start = System.nanoTime();
+            pingPong(selector, clients, roundTrips, line, latencies);
+            long elapsed = System.nanoTime() - start;
+            return new Result(name, connections, latencies, elapsed, heapBytes, directBytes);
+        } finally {
+            for(Client client : clients){
+                if(client != null){
+                    client.channel.close();
+                }
+            }
+        }
+    }
+
+    //所有连接同时开始，各自往返rounds次，latencies为null时不记录
+    private static void pingPong(Selector selector, Client[] clients, int rounds, byte[] line,
+                                 long[] latencies) throws IOException {
+        ByteBuffer request = ByteBuffer.wrap(line);
+        ByteBuffer response = ByteBuffer.allocateDirect(64 * 1024);
+        int recorded = 0;
+        int running = clients.length;
+        for(Client client : clients){
+            client.remaining = rounds;
+            client.send(request);
+        }
+        long lastProgress = System.currentTimeMillis();
+        while(running > 0){
+            if(selector.select(1000) == 0){
+                if(System.currentTimeMillis() - lastProgress > STALL_TIMEOUT_MILLIS){
+                    throw new IOException("no response for " + STALL_TIMEOUT_MILLIS + "ms, " + running + " connections pending");
+                }
+                continue;
+            }
+            lastProgress = System.currentTimeMillis();
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while(iterator.hasNext()){
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                Client client = (Client) key.attachment();
+                response.clear();
+                if(client.channel.read(response) == -1){
+                    throw new IOException("server closed connection " + client.channel.getLocalAddress());
+                }
+                response.flip();
+                //一个响应可能分多次读到，以换行符作为一次往返结束
+                while(response.hasRemaining()){
+                    if(response.get() != '\n'){
+                        continue;
+                    }
+                    long now = System.nanoTime();
+                    if(latencies != null){
+                        latencies[recorded++] = now - client.sentAt;
+                    }
+                    if(--client.remaining > 0){
+                        client.send(request);
+                    }else{
+                        running--;
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Client{
+        final SocketChannel channel;
+        long sentAt;
+        int remaining;
+
+        Client(SocketChannel channel){
+            this.channel = channel;
+        }
+
+        //请求很小，回环上一次write即可写完，写不完时自旋
+        void send(ByteBuffer request) throws IOException {
+            request.rewind();
+            sentAt = System.nanoTime();
+            while(request.hasRemaining()){
+                channel.write(request);
+            }
+        }
+    }
+
+    static long usedHeap(){
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0;i < 3;i++){
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static long usedDirect(){
+        for(BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)){
+            if("direct".equals(pool.getName())){
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    public static class Result{
+        public final String name;
+        public final int connections;
+        public final long requests;
+        public final double requestsPerSecond;
+        //单位均为微秒
+        public final double p50;
+        public final double p90;
+        public final double p99;
+        public final double p999;
+        public final double max;
+        public final long heapBytesPerConnection;
+        public final long directBytesPerConnection;
+
+        Result(String name, int connections, long[] latencies, long elapsedNanos, long heapBytesPerConnection,
+               long directBytesPerConnection){
+            Arrays.sort(latencies);
+            this.name = name;
+            this.connections = connections;
+            this.requests = latencies.length;
+            this.requestsPerSecond = latencies.length * 1_000_000_000.0 / elapsedNanos;
+            this.p50 = percentile(latencies, 0.50);
+            this.p90 = percentile(latencies, 0.90);
+            this.p99 = percentile(latencies, 0.99);
+            this.p999 = percentile(latencies, 0.999);
+            this.max = latencies.length == 0 ? 0 : latencies[latencies.length - 1] / 1000.0;
+            this.heapBytesPerConnection = heapBytesPerConnection;
+            this.directBytesPerConnection = directBytesPerConnection;
+        }
+
+        //latencies已排序
+        static double percentile(long[] latencies, double p){
+            if(latencies.length == 0){
+                return 0;
+            }
+            int index = (int) Math.ceil(p * latencies.length) - 1;
+            return latencies[Math.max(index, 0)] / 1000.0;
+        }
+
+        public static String header(){
+            return String.format("%-20s %8s %10s %9s %9s %9s %9s %9s %10s %10s", "server", "conns", "req/s",
+                    "p50(us)", "p90(us)", "p99(us)", "p999(us)", "max(us)", "heap/conn", "direct/conn");
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-20s %8d %10.0f %9.1f %9.1f %9.1f %9.1f %9.1f %10d %10d", name, connections,
+                    requestsPerSecond, p50, p90, p99, p999, max, heapBytesPerConnection, directBytesPerConnection);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package IO;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 文件拷贝工具，按文件大小选择拷贝方式
+ *  * DIRECT_BUFFER：池化直接内存分块读写，小文件使用（mmap/sendfile的准备开销比拷贝本身还大）
+ *  * MAPPED：源文件按区域mmap后写入目标文件，省去一次内核->用户空间的拷贝，中等文件使用
+ *  * TRANSFER：FileChannel.transferTo，数据不进入用户空间（Linux下为copy_file_range/sendfile），大文件使用
+ *  * PARALLEL：超大文件切分为多个区域，每个线程独立打开文件按区域transferTo
+ * 与BasicUse.testCopyFile中1KB堆内存循环的区别：每MB的系统调用次数从上千次降到个位数，并且没有堆内存->直接内存的拷贝
+ * @author fuhaifei
+ * */
+public class FileCopier {
+
+    public enum Strategy{
+        DIRECT_BUFFER, MAPPED, TRANSFER, PARALLEL
+    }
+
+    static final long MAPPED_THRESHOLD = 256 * 1024;
+    static final long TRANSFER_THRESHOLD = 64L * 1024 * 1024;
+    static final long PARALLEL_THRESHOLD = 1024L * 1024 * 1024;
+    //单次映射的区域大小，避免超大文件占满虚拟地址空间
+    static final long MAP_REGION_SIZE = 64L * 1024 * 1024;
+    static final int CHUNK_SIZE = 256 * 1024;
+
+    public static Strategy choose(long size){
+        if(size < MAPPED_THRESHOLD){
+            return Strategy.DIRECT_BUFFER;
+        }else if(size < TRANSFER_THRESHOLD){
+            return Strategy.MAPPED;
+        }else if(size < PARALLEL_THRESHOLD){
+            return Strategy.TRANSFER;
+        }
+        return Strategy.PARALLEL;
+    }
+
+    //按大小自动选择方式，返回拷贝的字节数
+    public static long copy(Path src, Path dst) throws IOException {
+        return copy(src, dst, choose(Files.size(src)));
+    }
+
+    public static long copy(Path src, Path dst, Strategy strategy) throws IOException {
+        if(strategy == Strategy.PARALLEL){
+            return copyParallel(src, dst, Runtime.getRuntime().availableProcessors());
+        }
+        checkNotSameFile(src, dst);
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(dst, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            return switch (strategy) {
+                case DIRECT_BUFFER -> copyWithDirectBuffer(in, out);
+                case MAPPED -> copyMapped(in, out, size);
+                default -> copyTransfer(in, 0, size, out);
+            };
+        }
+    }
+
+    //打开目标文件时会截断，源和目标是同一个文件（包括硬链接、符号链接）时源文件会被清空
+    private static void checkNotSameFile(Path src, Path dst) throws IOException {
+        if(Files.exists(dst) && Files.isSameFile(src, dst)){
+            throw new IllegalArgumentException("source and destination are the same file:" + src);
+        }
+    }
+
+    static long copyWithDirectBuffer(FileChannel in, FileChannel out) throws IOException {
+        ByteBuffer buffer = DirectBufferPool.DEFAULT.acquire(CHUNK_SIZE);
+        long total = 0;
+        try {
+            while(in.read(buffer) != -1){
+                buffer.flip();
+                while(buffer.hasRemaining()){
+                    total += out.write(buffer);
+                }
+                buffer.clear();
+            }
+        } finally {
+            DirectBufferPool.DEFAULT.release(buffer);
+        }
+        return total;
+    }
+
+    static long copyMapped(FileChannel in, FileChannel out, long size) throws IOException {
+        long position = 0;
+        while(position < size){
+            long regionSize = Math.min(MAP_REGION_SIZE, size - position);
+            MappedByteBuffer region = in.map(FileChannel.MapMode.READ_ONLY, position, regionSize);
+            while(region.hasRemaining()){
+                out.write(region);
+            }
+            position += regionSize;
+        }
+        return size;
+    }
+
+    //transferTo单次可能只传输一部分（Linux单次上限约2GB），需要循环
+    static long copyTransfer(FileChannel in, long position, long count, FileChannel out) throws IOException {
+        long transferred = 0;
+        while(transferred < count){
+            long n = in.transferTo(position + transferred, count - transferred, out);
+            if(n <= 0){
+                throw new IOException("source file truncated at " + (position + transferred));
+            }
+            transferred += n;
+        }
+        return transferred;
+    }
+
+    /**
+     * 多区域并行拷贝
+     * 每个线程独立打开源/目标文件：transferTo写入目标channel的当前position，共享同一个channel会互相覆盖
+     * */
+    public static long copyParallel(Path src, Path dst, int threads) throws IOException {
+        //参数检查必须在截断目标文件之前
+        if(threads <= 0){
+            throw new IllegalArgumentException("threads must be positive:" + threads);
+        }
+        checkNotSameFile(src, dst);
+        long size = Files.size(src);
+        try (FileChannel out = FileChannel.open(dst, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            //预先扩展目标文件，各区域并发写入时不需要再扩展
+            if(size > 0){
+                out.write(ByteBuffer.allocate(1), size - 1);
+            }
+        }
+        long regionSize = Math.max((size + threads - 1) / threads, 1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for(long start = 0;start < size;start += regionSize){
+                long position = start;
+                long count = Math.min(regionSize, size - start);
+                futures.add(pool.submit(() -> {
+                    try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                         FileChannel regionOut = FileChannel.open(dst, StandardOpenOption.WRITE)) {
+                        regionOut.position(position);
+                        return copyTransfer(in, position, count, regionOut);
+                    }
+                }));
+            }
+            long total = 0;
+            for(Future<Long> future : futures){
+                total += future.get();
+            }
+            return total;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("parallel copy interrupted", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 对同一个源文件依次使用各种方式拷贝，返回每种方式的吞吐量（MB/s）
+     * 先跑一轮预热，源文件会进入page cache，结果反映的是内存带宽和系统调用开销，不是磁盘速度
+     * */
+    public static Map<Strategy, Double> benchmark(Path src, Path dstDir, int rounds) throws IOException {
+        long size = Files.size(src);
+        Map<Strategy, Double> result = new EnumMap<>(Strategy.class);
+        for(Strategy strategy : Strategy.values()){
+            Path dst = dstDir.resolve(src.getFileName() + "." + strategy.name().toLowerCase());
+            copy(src, dst, strategy);
+            long start = System.nanoTime();
+            for(int i = 0;i < rounds;i++){
+                copy(src, dst, strategy);
+            }
+            long elapsed = System.nanoTime() - start;
+            double mbPerSecond = size * rounds / 1024.0 / 1024.0 / (elapsed / 1_000_000_000.0);
+            result.put(strategy, mbPerSecond);
+            System.out.printf("%-14s %10.1f MB/s%n", strategy, mbPerSecond);
+            Files.deleteIfExists(dst);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,125 @@
+package IO;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 静态文件服务，基于HandlerContext.writeFile实现零拷贝发送
+ * 协议（按行拆帧）：
+ *  * 请求：GET <相对路径> [bytes=<start>-<end>]，区间为闭区间，支持 start- 和 -suffixLength 两种省略写法
+ *  * 成功：OK <length> <start>-<end>/<fileSize> 一行，紧接着是length字节的原始文件内容；空文件为 OK 0 -/0
+ *  * 失败：ERR <code> <reason> 一行（400/404/416）
+ * 只允许访问root目录之下的文件：root和请求路径都先解析符号链接（toRealPath）再比较，root中指向外部的链接同样拒绝
+ * 使用方式：new ReactorServerDemo(new FileServeHandler(root), executor).new SingleReactor(port)
+ * @author fuhaifei
+ * */
+public class FileServeHandler implements BusinessHandler {
+    private final Path root;
+
+    //root必须已经存在
+    public FileServeHandler(Path root) throws IOException {
+        this.root = root.toRealPath();
+    }
+
+    @Override
+    public void handle(HandlerContext ctx, byte[] request) {
+        String[] parts = new String(request, StandardCharsets.UTF_8).trim().split("\\s+");
+        if(parts.length < 2 || parts.length > 3 || !parts[0].equals("GET")){
+            reply(ctx, "ERR 400 bad request");
+            return;
+        }
+        Path path;
+        try {
+            path = root.resolve(parts[1]).toRealPath();
+        } catch (IOException | InvalidPathException e){
+            //文件不存在（NoSuchFileException）、无权限、链接循环、非法路径，都不暴露具体原因
+            reply(ctx, "ERR 404 not found");
+            return;
+        }
+        if(!path.startsWith(root) || !Files.isRegularFile(path)){
+            reply(ctx, "ERR 404 not found");
+            return;
+        }
+        FileChannel file = null;
+        try {
+            file = FileChannel.open(path, StandardOpenOption.READ);
+            long size = file.size();
+            if(size == 0 && parts.length == 2){
+                file.close();
+                reply(ctx, "OK 0 -/0");
+                return;
+            }
+            long[] range = parts.length == 3 ? parseRange(parts[2], size) : new long[]{0, size - 1};
+            if(range == null){
+                file.close();
+                reply(ctx, "ERR 416 range not satisfiable");
+                return;
+            }
+            long length = range[1] - range[0] + 1;
+            reply(ctx, "OK " + length + " " + range[0] + "-" + range[1] + "/" + size);
+            ctx.writeFile(file, range[0], length);
+        } catch (NoSuchFileException e){
+            reply(ctx, "ERR 404 not found");
+        } catch (IOException e){
+            closeQuietly(file);
+            ctx.close();
+        }
+    }
+
+    /**
+     * 解析bytes=start-end，返回[start, end]，不合法或者不可满足时返回null
+     * 空文件任何区间都不可满足，只有不带区间的请求能成功（OK 0 -/0）
+     * */
+    static long[] parseRange(String spec, long size){
+        if(!spec.startsWith("bytes=")){
+            return null;
+        }
+        String range = spec.substring("bytes=".length());
+        int dash = range.indexOf('-');
+        if(dash < 0){
+            return null;
+        }
+        try {
+            String first = range.substring(0, dash);
+            String last = range.substring(dash + 1);
+            long start, end;
+            if(first.isEmpty()){
+                //最后N个字节
+                long suffix = Long.parseLong(last);
+                if(suffix <= 0){
+                    return null;
+                }
+                start = Math.max(size - suffix, 0);
+                end = size - 1;
+            }else{
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+            }
+            if(start < 0 || start >= size || end < start){
+                return null;
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e){
+            return null;
+        }
+    }
+
+    private static void reply(HandlerContext ctx, String line){
+        ctx.write(line.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void closeQuietly(FileChannel file){
+        if(file != null){
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package IO;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * 流式拆帧
+ *  * TCP是字节流，一次read()可能只读到半个消息（拆包），也可能读到多个消息（粘包）
+ *  * 每个连接一个decoder，内部维护累积缓冲（cumulation）：未成帧的字节留在缓冲中等待下一次read
+ *  * 每次decode尽可能多地解出完整帧，一次read系统调用可以处理多个流水线请求
+ *  * 累积缓冲为DirectByteBuf，解码推进readerIndex、追加推进writerIndex，不需要flip()/compact()来回切换模式
+ *  * 累积缓冲为空时直接在读缓冲上解码；有剩余字节时读缓冲本身成为累积缓冲，不做拷贝
+ *    已有累积缓冲时才把新数据追加进去（必要时按DirectByteBuf的策略扩容），已读部分超过一半时再回收
+ * 两种实现：
+ *  * LengthFieldFrameDecoder：定长长度字段 + 消息体
+ *  * LineFrameDecoder：以\n（兼容\r\n）分隔
+ * 非线程安全，只能在连接所属的Reactor线程中使用
+ * @author fuhaifei
+ * */
+public abstract class FrameDecoder {
+    protected final DirectBufferPool bufferPool;
+    protected final int maxFrameLength;
+    private DirectByteBuf cumulation;
+
+    protected FrameDecoder(DirectBufferPool bufferPool, int maxFrameLength){
+        this.bufferPool = bufferPool;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * @param in 新读到的数据，所有权转交给decoder：调用后不能再使用，由decoder负责release
+     * @param out 完整帧的接收者，按到达顺序调用
+     * @return 本次解出的帧数
+     * @throws CorruptedFrameException 帧超过maxFrameLength或格式错误，连接应当被关闭
+     * */
+    public int decode(DirectByteBuf in, Consumer<byte[]> out) throws CorruptedFrameException {
+        if(cumulation == null){
+            cumulation = in;
+        }else{
+            try {
+                cumulation.writeBytes(in);
+            } finally {
+                in.release();
+            }
+        }
+        return decodeCumulation(out);
+    }
+
+    /**
+     * 按ByteBuffer传入数据，不转移所有权，in的[position, limit)被全部消费
+     * 用于BIO/AIO等自己管理读缓冲的实现：没有累积数据时直接在in上解码，只拷贝未成帧的剩余字节
+     * */
+    public int decode(ByteBuffer in, Consumer<byte[]> out) throws CorruptedFrameException {
+        if(cumulation != null){
+            cumulation.writeBytes(in);
+            return decodeCumulation(out);
+        }
+        DirectByteBuf view = DirectByteBuf.wrap(in);
+        int frames;
+        try {
+            frames = decodeAll(view, out);
+        } finally {
+            in.position(in.position() + view.readerIndex());
+        }
+        if(in.hasRemaining()){
+            cumulation = DirectByteBuf.allocate(bufferPool, in.remaining());
+            cumulation.writeBytes(in);
+        }
+        return frames;
+    }
+
+    private int decodeCumulation(Consumer<byte[]> out) throws CorruptedFrameException {
+        try {
+            return decodeAll(cumulation, out);
+        } finally {
+            if(!cumulation.isReadable()){
+                cumulation.release();
+                cumulation = null;
+            }else if(cumulation.readerIndex() >= cumulation.capacity() >>> 1){
+                cumulation.discardReadBytes();
+            }
+        }
+    }
+
+    private int decodeAll(DirectByteBuf buffer, Consumer<byte[]> out) throws CorruptedFrameException {
+        int frames = 0;
+        byte[] frame;
+        while(buffer.isReadable() && (frame = decodeFrame(buffer)) != null){
+            out.accept(frame);
+            frames++;
+        }
+        return frames;
+    }
+
+    //累积但还未成帧的字节数
+    public int pendingBytes(){
+        return cumulation == null ? 0 : cumulation.readableBytes();
+    }
+
+    //连接关闭时调用，归还累积缓冲
+    public void release(){
+        if(cumulation != null){
+            cumulation.release();
+            cumulation = null;
+        }
+    }
+
+    /**
+     * 尝试从buffer的readerIndex处解出一帧
+     * 成功时readerIndex移动到帧尾并返回帧内容，数据不足时不移动readerIndex并返回null
+     * */
+    protected abstract byte[] decodeFrame(DirectByteBuf buffer) throws CorruptedFrameException;
+
+    //对应的出站封帧，响应按同样的协议写回
+    public abstract byte[] frame(byte[] payload);
+
+    //payload封帧后的长度
+    public abstract int frameLength(int payloadLength);
+
+    //把payload封帧后直接写入out，省去frame()中间数组的一次拷贝
+    public abstract void encode(byte[] payload, DirectByteBuf out);
+
+    public static class CorruptedFrameException extends IOException{
+        private static final long serialVersionUID = 1L;
+
+        public CorruptedFrameException(String message){
+            super(message);
+        }
+    }
+
+    /**
+     * 长度字段 + 消息体，长度字段为大端无符号整数，不包含自身长度
+     * */
+    public static class LengthFieldFrameDecoder extends FrameDecoder{
+        private final int lengthFieldLength;
+
+        public LengthFieldFrameDecoder(DirectBufferPool bufferPool, int lengthFieldLength, int maxFrameLength){
+            super(bufferPool, maxFrameLength);
+            if(lengthFieldLength != 1 && lengthFieldLength != 2 && lengthFieldLength != 4){
+                throw new IllegalArgumentException("lengthFieldLength must be 1, 2 or 4: " + lengthFieldLength);
+            }
+            this.lengthFieldLength = lengthFieldLength;
+        }
+
+        @Override
+        protected byte[] decodeFrame(DirectByteBuf buffer) throws CorruptedFrameException {
+            if(buffer.readableBytes() < lengthFieldLength){
+                return null;
+            }
+            int start = buffer.readerIndex();
+            long length = switch (lengthFieldLength) {
+                case 1 -> buffer.getUnsignedByte(start);
+                case 2 -> buffer.getUnsignedShort(start);
+                default -> buffer.getUnsignedInt(start);
+            };
+            if(length > maxFrameLength){
+                throw new CorruptedFrameException("frame length " + length + " exceeds " + maxFrameLength);
+            }
+            if(buffer.readableBytes() < lengthFieldLength + length){
+                return null;
+            }
+            return buffer.skipBytes(lengthFieldLength).readBytes((int) length);
+        }
+
+        @Override
+        public byte[] frame(byte[] payload) {
+            checkPayloadLength(payload.length);
+            ByteBuffer framed = ByteBuffer.allocate(lengthFieldLength + payload.length);
+            switch (lengthFieldLength) {
+                case 1 -> framed.put((byte) payload.length);
+                case 2 -> framed.putShort((short) payload.length);
+                default -> framed.putInt(payload.length);
+            }
+            return framed.put(payload).array();
+        }
+
+        /**
+         * 长度字段能表示的最大值：1字节255，2字节65535，4字节按int处理为Integer.MAX_VALUE
+         * 超过时强转会截断长度字段，对端会按错误的长度切分后续所有数据，只能拒绝发送
+         * */
+        private void checkPayloadLength(int payloadLength){
+            long max = switch (lengthFieldLength) {
+                case 1 -> 0xFF;
+                case 2 -> 0xFFFF;
+                default -> Integer.MAX_VALUE;
+            };
+            if(payloadLength > max){
+                throw new IllegalArgumentException("payload length " + payloadLength + " exceeds " +
+                        lengthFieldLength + "-byte length field max " + max);
+            }
+        }
+
+        @Override
+        public int frameLength(int payloadLength) {
+            checkPayloadLength(payloadLength);
+            return lengthFieldLength + payloadLength;
+        }
+
+        @Override
+        public void encode(byte[] payload, DirectByteBuf out) {
+            checkPayloadLength(payload.length);
+            switch (lengthFieldLength) {
+                case 1 -> out.writeByte(payload.length);
+                case 2 -> out.writeShort(payload.length);
+                default -> out.writeInt(payload.length);
+            }
+            out.writeBytes(payload);
+        }
+    }
+
+    /**
+     * 以\n分隔的文本行，帧内容不包含行尾的\r\n
+     * 记录上次扫描到的位置，半包情况下不会重复扫描已经检查过的字节
+     * */
+    public static class LineFrameDecoder extends FrameDecoder{
+        private int scanned;
+
+        public LineFrameDecoder(DirectBufferPool bufferPool, int maxFrameLength){
+            super(bufferPool, maxFrameLength);
+        }
+
+        @Override
+        protected byte[] decodeFrame(DirectByteBuf buffer) throws CorruptedFrameException {
+            int start = buffer.readerIndex();
+            int limit = buffer.writerIndex();
+            int i = buffer.indexOf(start + scanned, limit, (byte) '\n');
+            if(i >= 0){
+                int end = i > start && buffer.getByte(i - 1) == '\r' ? i - 1 : i;
+                byte[] frame = buffer.readBytes(end - start);
+                buffer.readerIndex(i + 1);
+                scanned = 0;
+                return frame;
+            }
+            scanned = limit - start;
+            if(scanned > maxFrameLength){
+                throw new CorruptedFrameException("line length exceeds " + maxFrameLength);
+            }
+            return null;
+        }
+
+        @Override
+        public byte[] frame(byte[] payload) {
+            byte[] framed = new byte[payload.length + 1];
+            System.arraycopy(payload, 0, framed, 0, payload.length);
+            framed[payload.length] = '\n';
+            return framed;
+        }
+
+        @Override
+        public int frameLength(int payloadLength) {
+            return payloadLength + 1;
+        }
+
+        @Override
+        public void encode(byte[] payload, DirectByteBuf out) {
+            out.writeBytes(payload).writeByte('\n');
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package IO;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 业务线程视角下的一条连接，所有方法均线程安全
+ * @author fuhaifei
+ * */
+public interface HandlerContext {
+    
+    SocketAddress remoteAddress();
+    
+    //异步写回，数据排队到连接所属的IO线程后立即返回
+    void write(byte[] response);
+    
+    /**
+     * 把文件的[position, position + count)区间原样写回（不经过拆帧器封帧），与write()保持提交顺序
+     * Reactor实现基于FileChannel.transferTo（Linux下为sendfile），数据不经过用户空间
+     * 文件的所有权转交给连接：发送完成或者连接关闭后由IO线程负责关闭file
+     * */
+    void writeFile(FileChannel file, long position, long count);
+    
+    /**
+     * 按路径发送文件区间，默认打开FileChannel后交给writeFile(FileChannel...)，打开失败时关闭连接
+     * AIO实现改为AsynchronousFileChannel读取，不占用IO线程
+     * */
+    default void writeFile(Path file, long position, long count){
+        try {
+            writeFile(FileChannel.open(file, StandardOpenOption.READ), position, count);
+        } catch (IOException e) {
+            close();
+        }
+    }
+    
+    void close();
+}
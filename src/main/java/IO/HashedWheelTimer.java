@@ -0,0 +1,151 @@
+package IO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 哈希时间轮（单线程版本）
+ *  * 环形数组，每个槽位是一个双向链表；指针每个tick前进一格，处理当前槽位中到期的任务
+ *  * 超过一圈的任务记录剩余圈数，指针经过时减一
+ *  * 添加/取消任务均为O(1)，不需要像优先队列那样维护整体有序
+ *  * 没有自己的线程，由Reactor线程在每次select返回后调用advance()推进，所有方法只能在该线程中调用
+ *  * 任务抛出的异常记录日志后继续执行其他任务，不会传播到Reactor线程
+ * 与空闲检测配合使用时，连接活跃只更新时间戳，不操作时间轮；任务到期时再检查时间戳，
+ * 没有真正空闲则按剩余时间重新加入时间轮（参考Netty IdleStateHandler）
+ * @author fuhaifei
+ * */
+public class HashedWheelTimer {
+    private static Logger logger = LoggerFactory.getLogger(HashedWheelTimer.class.getName());
+    private final long tickMillis;
+    private final Timeout[] wheel;
+    private final int mask;
+    //已经处理到的tick
+    private long currentTick;
+    private final long startMillis;
+    private int pending;
+
+    public interface TimerTask{
+        void run(Timeout timeout);
+    }
+
+    public static class Timeout{
+        private final TimerTask task;
+        private long remainingRounds;
+        private int slot = -1;
+        private Timeout prev, next;
+        private HashedWheelTimer timer;
+        //是否还在时间轮中（未到期且未取消）
+        private boolean pending;
+
+        private Timeout(TimerTask task){
+            this.task = task;
+        }
+
+        public boolean isPending(){
+            return pending;
+        }
+
+        //O(1)从所在槽位摘除，已经到期或取消的任务调用无效果
+        public void cancel(){
+            if(pending){
+                timer.remove(this);
+            }
+        }
+    }
+
+    /**
+     * @param tickMillis 时间精度，任务最多延迟一个tick执行
+     * @param wheelSize 槽位数量，会向上取整为2的幂次
+     * */
+    public HashedWheelTimer(long tickMillis, int wheelSize){
+        this.tickMillis = tickMillis;
+        int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+        this.wheel = new Timeout[size];
+        this.mask = size - 1;
+        this.startMillis = nowMillis();
+    }
+
+    public static long nowMillis(){
+        return System.nanoTime() / 1_000_000;
+    }
+
+    public Timeout schedule(TimerTask task, long delayMillis){
+        Timeout timeout = new Timeout(task);
+        add(timeout, delayMillis);
+        return timeout;
+    }
+
+    private void add(Timeout timeout, long delayMillis){
+        long deadlineTick = (nowMillis() - startMillis + Math.max(delayMillis, 0) + tickMillis - 1) / tickMillis;
+        //已经过期的任务放到下一个tick执行
+        long ticks = Math.max(deadlineTick - currentTick, 1);
+        timeout.remainingRounds = (ticks - 1) / wheel.length;
+        int slot = (int) ((currentTick + ticks) & mask);
+        timeout.slot = slot;
+        timeout.timer = this;
+        timeout.pending = true;
+        timeout.prev = null;
+        timeout.next = wheel[slot];
+        if(wheel[slot] != null){
+            wheel[slot].prev = timeout;
+        }
+        wheel[slot] = timeout;
+        pending++;
+    }
+
+    private void remove(Timeout timeout){
+        if(timeout.prev != null){
+            timeout.prev.next = timeout.next;
+        }else{
+            wheel[timeout.slot] = timeout.next;
+        }
+        if(timeout.next != null){
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = timeout.next = null;
+        timeout.pending = false;
+        pending--;
+    }
+
+    /**
+     * 推进到当前时间，执行所有到期任务
+     * @return 本次执行的任务数
+     * */
+    public int advance(){
+        long targetTick = (nowMillis() - startMillis) / tickMillis;
+        int expired = 0;
+        while(currentTick < targetTick){
+            currentTick++;
+            //先把到期任务整体摘出再执行，任务中重新调度/取消其他任务不会破坏正在遍历的链表
+            Timeout expiredHead = null;
+            Timeout timeout = wheel[(int) (currentTick & mask)];
+            while(timeout != null){
+                Timeout next = timeout.next;
+                if(timeout.remainingRounds > 0){
+                    timeout.remainingRounds--;
+                }else{
+                    remove(timeout);
+                    timeout.next = expiredHead;
+                    expiredHead = timeout;
+                }
+                timeout = next;
+            }
+            while(expiredHead != null){
+                Timeout next = expiredHead.next;
+                expiredHead.next = null;
+                try {
+                    expiredHead.task.run(expiredHead);
+                } catch (Throwable e) {
+                    logger.error(Thread.currentThread().getName() + "timer task failed:" + e);
+                }
+                expired++;
+                expiredHead = next;
+            }
+        }
+        return expired;
+    }
+
+    public int pendingTimeouts(){
+        return pending;
+    }
+}
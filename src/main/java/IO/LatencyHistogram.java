@@ -0,0 +1,104 @@
+package IO;
+
+import java.util.Arrays;
+
+/**
+ * 延迟直方图（HdrHistogram的简化版），记录纳秒值，相对误差不超过1/128
+ *  * 对数-线性分桶：小于256的值每个值一个桶；之后每翻一倍分为128个桶，桶宽随数值增大而加倍
+ *  * 记录为O(1)的数组自增，不分配对象，可以在压测的热路径上使用
+ *  * 百分位取桶的上界，最大值单独精确记录；超过MAX_VALUE的值按MAX_VALUE记录
+ * 非线程安全：每个记录线程持有一个，汇总时用add()合并
+ * @author fuhaifei
+ * */
+public class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 8;
+    static final int SUB_BUCKET_HALF = 1 << (SUB_BUCKET_BITS - 1);
+    //约18分钟
+    static final long MAX_VALUE = (1L << 40) - 1;
+
+    private final long[] counts = new long[indexOf(MAX_VALUE) + 1];
+    private long totalCount;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private double sum;
+
+    static int indexOf(long value){
+        if(value < 2 * SUB_BUCKET_HALF){
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return (int) (shift * SUB_BUCKET_HALF + (value >>> shift));
+    }
+
+    //桶内的最大值
+    static long highestValueAt(int index){
+        if(index < 2 * SUB_BUCKET_HALF){
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF - 1;
+        long subBucket = index - (long) shift * SUB_BUCKET_HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public void record(long value){
+        value = Math.min(Math.max(value, 0), MAX_VALUE);
+        counts[indexOf(value)]++;
+        totalCount++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void add(LatencyHistogram other){
+        for(int i = 0;i < counts.length;i++){
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void reset(){
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    /**
+     * @param percentile 0~100，例如99.99
+     * */
+    public long valueAtPercentile(double percentile){
+        if(totalCount == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long seen = 0;
+        for(int i = 0;i < counts.length;i++){
+            seen += counts[i];
+            if(seen >= rank){
+                return Math.min(highestValueAt(i), max);
+            }
+        }
+        return max;
+    }
+
+    public long count(){
+        return totalCount;
+    }
+
+    public long min(){
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public long max(){
+        return max;
+    }
+
+    public double mean(){
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+}
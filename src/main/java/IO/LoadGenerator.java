@@ -0,0 +1,364 @@
+package IO;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 开环压测客户端（按行回显协议）
+ *  * 开环：请求按固定速率排期，第i个请求的计划发送时间为 start + i / rate，不因服务器变慢而推迟
+ *      * 闭环压测（收到响应才发下一个）在服务器卡顿时会少发请求，卡顿期间本该发生的高延迟没有被记录，
+ *        即coordinated omission，得到的高百分位延迟偏乐观
+ *  * 延迟从计划发送时间算起（corrected），同时记录从实际发送时间算起的延迟（uncorrected）作为对照
+ *  * 请求轮流分配到N个连接，每个连接最多有pipelineDepth个请求在途，超出的请求排队等待，排队时间计入corrected延迟
+ *  * 单线程Selector驱动全部连接，距离下一个计划时间不足1ms时忙等
+ *  * 预热期间的请求不计入结果；排期结束后最多等待DRAIN_TIMEOUT_MILLIS收取在途响应，未收到的计为lost
+ * @author fuhaifei
+ * */
+public class LoadGenerator {
+
+    static final long DRAIN_TIMEOUT_MILLIS = 5_000;
+    static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private final InetSocketAddress address;
+    private final int connections;
+    private final int requestsPerSecond;
+    private final int pipelineDepth;
+    private final byte[] request;
+
+    /**
+     * @param requestsPerSecond 所有连接合计的目标速率
+     * @param pipelineDepth 每个连接最多在途的请求数，1即不使用流水线
+     * @param payloadSize 每个请求的字节数（不含换行符）
+     * */
+    public LoadGenerator(InetSocketAddress address, int connections, int requestsPerSecond, int pipelineDepth,
+                         int payloadSize){
+        this.address = address;
+        this.connections = connections;
+        this.requestsPerSecond = requestsPerSecond;
+        this.pipelineDepth = pipelineDepth;
+        this.request = new byte[payloadSize + 1];
+        Arrays.fill(request, (byte) 'a');
+        request[payloadSize] = '\n';
+    }
+
+    public Report run(String name, long warmupMillis, long durationMillis) throws IOException {
+        LatencyHistogram corrected = new LatencyHistogram();
+        LatencyHistogram uncorrected = new LatencyHistogram();
+        Connection[] conns = new Connection[connections];
+        try (Selector selector = Selector.open()) {
+            for(int i = 0;i < connections;i++){
+                SocketChannel channel = SocketChannel.open(address);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.configureBlocking(false);
+                conns[i] = new Connection(channel);
+                conns[i].key = channel.register(selector, SelectionKey.OP_READ, conns[i]);
+            }
+            ByteBuffer response = ByteBuffer.allocateDirect(64 * 1024);
+            double intervalNanos = 1_000_000_000.0 / requestsPerSecond;
+            long start = System.nanoTime();
+            long measureFrom = start + warmupMillis * 1_000_000;
+            long scheduleEnd = measureFrom + durationMillis * 1_000_000;
+            long drainDeadline = scheduleEnd + DRAIN_TIMEOUT_MILLIS * 1_000_000;
+            long scheduled = 0;
+            long measuredScheduled = 0;
+            long next = start;
+            long outstanding = 0;
+            for(;;){
+                long now = System.nanoTime();
+                //落后于计划时，所有到期的请求立即发出，落后的时间计入它们的延迟
+                while(next <= now && next < scheduleEnd){
+                    conns[(int) (scheduled % connections)].schedule(next);
+                    if(next >= measureFrom){
+                        measuredScheduled++;
+                    }
+                    outstanding++;
+                    scheduled++;
+                    next = start + (long) (scheduled * intervalNanos);
+                }
+                boolean scheduling = next < scheduleEnd;
+                if(!scheduling && (outstanding == 0 || now > drainDeadline)){
+                    break;
+                }
+                long waitNanos = scheduling ? next - now : 1_000_000;
+                int ready = waitNanos >= 1_000_000 ? selector.select(waitNanos / 1_000_000) : selector.selectNow();
+                if(ready == 0){
+                    continue;
+                }
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while(iterator.hasNext()){
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    Connection conn = (Connection) key.attachment();
+                    if(key.isWritable()){
+                        conn.flush();
+                    }
+                    if(!key.isReadable()){
+                        continue;
+                    }
+                    response.clear();
+                    if(conn.channel.read(response) == -1){
+                        throw new IOException("server closed connection " + conn.channel.getLocalAddress());
+                    }
+                    response.flip();
+                    long received = System.nanoTime();
+                    while(response.hasRemaining()){
+                        if(response.get() != '\n'){
+                            continue;
+                        }
+                        long intended = conn.intendedAt();
+                        long sent = conn.sentAt();
+                        conn.complete();
+                        outstanding--;
+                        if(intended >= measureFrom){
+                            corrected.record(received - intended);
+                            uncorrected.record(received - sent);
+                        }
+                    }
+                }
+            }
+            return new Report(name, connections, requestsPerSecond, pipelineDepth, durationMillis, measuredScheduled,
+                    corrected, uncorrected);
+        } finally {
+            for(Connection conn : conns){
+                if(conn != null){
+                    conn.channel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个连接上已排期的请求，按FIFO保存计划发送时间和实际发送时间
+     * 前inflight个已经发出，其余在排队
+     * */
+    private final class Connection{
+        final SocketChannel channel;
+        SelectionKey key;
+        long[] intended = new long[16];
+        long[] sent = new long[16];
+        int head;
+        int size;
+        int inflight;
+        ByteBuffer out = ByteBuffer.allocate(4096);
+
+        Connection(SocketChannel channel){
+            this.channel = channel;
+        }
+
+        void schedule(long intendedAt) throws IOException {
+            if(size == intended.length){
+                grow();
+            }
+            intended[(head + size) & (intended.length - 1)] = intendedAt;
+            size++;
+            sendQueued();
+        }
+
+        long intendedAt(){
+            return intended[head];
+        }
+
+        long sentAt(){
+            return sent[head];
+        }
+
+        void complete() throws IOException {
+            head = (head + 1) & (intended.length - 1);
+            size--;
+            inflight--;
+            sendQueued();
+        }
+
+        //在途数量未达到流水线深度时发出排队的请求
+        private void sendQueued() throws IOException {
+            if(inflight >= pipelineDepth || inflight >= size){
+                return;
+            }
+            long now = System.nanoTime();
+            while(inflight < pipelineDepth && inflight < size){
+                if(out.remaining() < request.length){
+                    ByteBuffer bigger = ByteBuffer.allocate(out.capacity() * 2);
+                    out.flip();
+                    bigger.put(out);
+                    out = bigger;
+                }
+                out.put(request);
+                sent[(head + inflight) & (sent.length - 1)] = now;
+                inflight++;
+            }
+            flush();
+        }
+
+        //写不完的部分留在out中，注册OP_WRITE等待可写
+        void flush() throws IOException {
+            out.flip();
+            channel.write(out);
+            out.compact();
+            key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void grow(){
+            long[] newIntended = new long[intended.length * 2];
+            long[] newSent = new long[sent.length * 2];
+            for(int i = 0;i < size;i++){
+                newIntended[i] = intended[(head + i) & (intended.length - 1)];
+                newSent[i] = sent[(head + i) & (sent.length - 1)];
+            }
+            intended = newIntended;
+            sent = newSent;
+            head = 0;
+        }
+    }
+
+    /**
+     * 一轮压测的结果，延迟单位为微秒
+     * */
+    public static class Report{
+        public final String name;
+        public final int connections;
+        public final int targetRate;
+        public final int pipelineDepth;
+        public final long durationMillis;
+        public final long scheduled;
+        public final long completed;
+        public final long lost;
+        public final double throughput;
+        public final double[] correctedMicros;
+        public final double correctedMaxMicros;
+        public final double[] uncorrectedMicros;
+        public final double uncorrectedMaxMicros;
+
+        Report(String name, int connections, int targetRate, int pipelineDepth, long durationMillis, long scheduled,
+               LatencyHistogram corrected, LatencyHistogram uncorrected){
+            this.name = name;
+            this.connections = connections;
+            this.targetRate = targetRate;
+            this.pipelineDepth = pipelineDepth;
+            this.durationMillis = durationMillis;
+            this.scheduled = scheduled;
+            this.completed = corrected.count();
+            this.lost = scheduled - completed;
+            this.throughput = completed * 1000.0 / durationMillis;
+            this.correctedMicros = percentiles(corrected);
+            this.correctedMaxMicros = corrected.max() / 1000.0;
+            this.uncorrectedMicros = percentiles(uncorrected);
+            this.uncorrectedMaxMicros = uncorrected.max() / 1000.0;
+        }
+
+        private static double[] percentiles(LatencyHistogram histogram){
+            double[] values = new double[PERCENTILES.length];
+            for(int i = 0;i < PERCENTILES.length;i++){
+                values[i] = histogram.valueAtPercentile(PERCENTILES[i]) / 1000.0;
+            }
+            return values;
+        }
+
+        //达到目标速率的95%且没有丢失响应
+        public boolean healthy(){
+            return lost == 0 && throughput >= targetRate * 0.95;
+        }
+
+        public String toJson(){
+            StringBuilder json = new StringBuilder();
+            json.append("{\"name\":\"").append(name).append('"')
+                    .append(",\"connections\":").append(connections)
+                    .append(",\"targetRate\":").append(targetRate)
+                    .append(",\"pipelineDepth\":").append(pipelineDepth)
+                    .append(",\"durationMillis\":").append(durationMillis)
+                    .append(",\"scheduled\":").append(scheduled)
+                    .append(",\"completed\":").append(completed)
+                    .append(",\"lost\":").append(lost)
+                    .append(",\"throughput\":").append(format(throughput))
+                    .append(",\"latencyMicros\":").append(latencyJson(correctedMicros, correctedMaxMicros))
+                    .append(",\"uncorrectedLatencyMicros\":").append(latencyJson(uncorrectedMicros, uncorrectedMaxMicros))
+                    .append('}');
+            return json.toString();
+        }
+
+        private static String latencyJson(double[] values, double max){
+            StringBuilder json = new StringBuilder("{");
+            for(int i = 0;i < PERCENTILES.length;i++){
+                json.append('"').append(percentileName(PERCENTILES[i])).append("\":").append(format(values[i])).append(',');
+            }
+            return json.append("\"max\":").append(format(max)).append('}').toString();
+        }
+
+        public static String csvHeader(){
+            StringBuilder header = new StringBuilder("name,connections,targetRate,pipelineDepth,durationMillis,scheduled,completed,lost,throughput");
+            for(double percentile : PERCENTILES){
+                header.append(',').append(percentileName(percentile)).append("Micros");
+            }
+            header.append(",maxMicros");
+            for(double percentile : PERCENTILES){
+                header.append(",uncorrected").append(percentileName(percentile).toUpperCase(Locale.ROOT)).append("Micros");
+            }
+            return header.append(",uncorrectedMaxMicros").toString();
+        }
+
+        public String toCsv(){
+            StringBuilder csv = new StringBuilder();
+            csv.append(name).append(',').append(connections).append(',').append(targetRate).append(',')
+                    .append(pipelineDepth).append(',').append(durationMillis).append(',').append(scheduled).append(',')
+                    .append(completed).append(',').append(lost).append(',').append(format(throughput));
+            for(double value : correctedMicros){
+                csv.append(',').append(format(value));
+            }
+            csv.append(',').append(format(correctedMaxMicros));
+            for(double value : uncorrectedMicros){
+                csv.append(',').append(format(value));
+            }
+            return csv.append(',').append(format(uncorrectedMaxMicros)).toString();
+        }
+
+        //50 -> p50, 99.9 -> p999, 99.99 -> p9999
+        static String percentileName(double percentile){
+            return "p" + (percentile == Math.floor(percentile) ? String.valueOf((long) percentile)
+                    : String.valueOf(percentile).replace(".", ""));
+        }
+
+        private static String format(double value){
+            return String.format(Locale.ROOT, "%.1f", value);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(String.format(Locale.ROOT,
+                    "%-16s conns=%d rate=%d depth=%d completed=%d lost=%d throughput=%.0f/s latency(us):",
+                    name, connections, targetRate, pipelineDepth, completed, lost, throughput));
+            for(int i = 0;i < PERCENTILES.length;i++){
+                text.append(' ').append(percentileName(PERCENTILES[i])).append('=').append(format(correctedMicros[i]));
+            }
+            text.append(" max=").append(format(correctedMaxMicros));
+            text.append(" (uncorrected p99=").append(format(uncorrectedMicros[2])).append(')');
+            return text.toString();
+        }
+
+        public static void writeJson(List<Report> reports, Path file) throws IOException {
+            StringBuilder json = new StringBuilder("[\n");
+            for(int i = 0;i < reports.size();i++){
+                json.append("  ").append(reports.get(i).toJson()).append(i == reports.size() - 1 ? "\n" : ",\n");
+            }
+            Files.writeString(file, json.append("]\n").toString(), StandardCharsets.UTF_8);
+        }
+
+        public static void writeCsv(List<Report> reports, Path file) throws IOException {
+            StringBuilder csv = new StringBuilder(csvHeader()).append('\n');
+            for(Report report : reports){
+                csv.append(report.toCsv()).append('\n');
+            }
+            Files.writeString(file, csv.toString(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package IO;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 对各个服务器实现做回环压测，输出JSON/CSV报告，用于发现性能回退
+ *  * 每种模式在独立端口启动回显服务器，用LoadGenerator以相同的速率、连接数、流水线深度施压
+ *  * 报告写入 输出目录/load-report.json 和 load-report.csv
+ *  * 任一模式丢失响应或吞吐量低于目标速率的95%时，进程以退出码1结束
+ *  * VirtualThreadServer需要JDK21编译（jdk21 profile），不存在时跳过
+ * 运行：java IO.LoadTest [速率] [连接数] [流水线深度] [持续秒数] [输出目录] [模式...]
+ *      模式：single-reactor multi-reactor bio-pool aio virtual-thread，默认全部
+ * @author fuhaifei
+ * */
+public class LoadTest {
+
+    static final int BASE_PORT = 19300;
+    static final long WARMUP_MILLIS = 2_000;
+
+    //在指定端口启动回显服务器，返回值用于停止服务器
+    @FunctionalInterface
+    interface ServerMode{
+        Closeable start(int port) throws Exception;
+    }
+
+    static Map<String, ServerMode> modes(int connections){
+        Map<String, ServerMode> modes = new LinkedHashMap<>();
+        int handlerThreads = Runtime.getRuntime().availableProcessors() * 2;
+        modes.put("single-reactor", port -> {
+            ReactorServerDemo server = new ReactorServerDemo(EchoBenchmark.ECHO,
+                    ReactorServerDemo.boundedExecutor(handlerThreads, 10000));
+            return startThread(server.new SingleReactor(port), "single-reactor");
+        });
+        modes.put("multi-reactor", port -> {
+            ReactorServerDemo server = new ReactorServerDemo(EchoBenchmark.ECHO,
+                    ReactorServerDemo.boundedExecutor(handlerThreads, 10000));
+            return startThread(server.new MultiReactor(port), "multi-reactor");
+        });
+        modes.put("bio-pool", port -> {
+            //BIO一个连接占用一个工作线程直到连接关闭，线程数少于连接数时多出的连接一直得不到服务
+            PooledBioServer server = new PooledBioServer(port, EchoBenchmark.ECHO, connections, 1024,
+                    PooledBioServer.CLOSE_ON_REJECT);
+            Thread thread = new Thread(server, "bioAcceptor");
+            thread.setDaemon(true);
+            thread.start();
+            return server;
+        });
+        modes.put("aio", port -> {
+            AioServer server = new AioServer(port, EchoBenchmark.ECHO);
+            server.start();
+            return server;
+        });
+        modes.put("virtual-thread", port -> {
+            //只在JDK21编译出该类时可用
+            Class<?> type = Class.forName("IO.VirtualThreadServer");
+            Object server = type.getConstructor(int.class, BusinessHandler.class).newInstance(port, EchoBenchmark.ECHO);
+            Thread thread = new Thread((Runnable) server, "vt-acceptor");
+            thread.setDaemon(true);
+            thread.start();
+            return (Closeable) server;
+        });
+        return modes;
+    }
+
+    private static Closeable startThread(Runnable eventLoop, String name){
+        Thread thread = new Thread(eventLoop, name);
+        thread.setDaemon(true);
+        thread.start();
+        return () -> {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rate = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int depth = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        long durationMillis = (args.length > 3 ? Long.parseLong(args[3]) : 10) * 1000;
+        Path outputDir = Paths.get(args.length > 4 ? args[4] : "target/load-reports");
+        Map<String, ServerMode> modes = modes(connections);
+        List<String> selected = args.length > 5 ? Arrays.asList(args).subList(5, args.length) : new ArrayList<>(modes.keySet());
+
+        List<LoadGenerator.Report> reports = new ArrayList<>();
+        int port = BASE_PORT;
+        for(String name : selected){
+            ServerMode mode = modes.get(name);
+            if(mode == null){
+                throw new IllegalArgumentException("unknown mode:" + name + ", available:" + modes.keySet());
+            }
+            Closeable server;
+            try {
+                server = mode.start(++port);
+            } catch (ClassNotFoundException e) {
+                System.out.println("skip " + name + ": " + e.getMessage() + " not compiled (requires JDK21)");
+                continue;
+            }
+            try (server) {
+                //等待服务器线程完成bind
+                Thread.sleep(200);
+                LoadGenerator generator = new LoadGenerator(new InetSocketAddress("127.0.0.1", port),
+                        connections, rate, depth, 64);
+                LoadGenerator.Report report = generator.run(name, WARMUP_MILLIS, durationMillis);
+                System.out.println(report);
+                reports.add(report);
+            }
+        }
+
+        Files.createDirectories(outputDir);
+        LoadGenerator.Report.writeJson(reports, outputDir.resolve("load-report.json"));
+        LoadGenerator.Report.writeCsv(reports, outputDir.resolve("load-report.csv"));
+        System.out.println("reports written to " + outputDir.toAbsolutePath());
+        boolean healthy = reports.stream().allMatch(LoadGenerator.Report::healthy);
+        System.exit(healthy ? 0 : 1);
+    }
+}
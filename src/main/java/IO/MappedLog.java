@@ -0,0 +1,321 @@
+package IO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * 基于MappedByteBuffer的分段追加日志
+ *  * 日志由多个等长的段文件组成（文件名为段起始偏移量），写满后滚动到新段
+ *  * 记录格式：[4字节长度][内容]，按4字节对齐；长度字段最后写入，相当于提交标记
+ *  * 写入：CAS（getAndAdd）在当前段上预留位置，多个线程并发拷贝各自的内容，互不加锁
+ *      * 预留起点落在段内或恰好等于段尾的那个线程放得下长度字段时写入段结束标记(-1)；上一条记录恰好写满段时，下一个写入者的起点就是段尾
+ *      * 越过段尾的线程都去滚动，滚动加锁且只有第一个成功，其余线程看到新段后重试；
+ *        创建新段失败（磁盘满、mmap失败）时异常抛给这次写入，后续写入者会重试滚动，不会一直等待
+ *  * 读取：Tailer按顺序读取，长度字段使用acquire语义读取，为0表示还没有提交，不加锁
+ *      * 写入线程先写内容再release写长度，读到非0长度时内容一定已经可见
+ *      * 由于并发预留，前面的记录可能比后面的记录晚提交，Tailer会停在未提交的记录处等待
+ *  * 刷盘：写入只进入page cache，后台线程按固定间隔批量force()脏区间，sync()可以立即刷盘
+ *      * 刷盘只到已提交的位置：从上次刷盘位置向后扫描长度字段，停在第一条未提交的记录处，
+ *        预留了位置但还没写完的记录留给下一次刷盘，不会因为刷盘位置越过它而漏刷
+ *      * 进程崩溃不丢数据（page cache仍在），机器掉电最多丢失一个刷盘间隔的数据
+ *  * 重新打开时从最后一个段的头部扫描，第一个未提交的位置即为写入位置
+ * @author fuhaifei
+ * */
+public class MappedLog implements Closeable {
+    private static Logger logger = LoggerFactory.getLogger(MappedLog.class.getName());
+
+    static final int HEADER_SIZE = 4;
+    static final int END_OF_SEGMENT = -1;
+    static final int MAX_SEGMENT_SIZE = 1 << 30;
+    //MappedByteBuffer上的int视图，支持setRelease/getAcquire（要求4字节对齐）
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final Path dir;
+    private final int segmentSize;
+    //读线程无锁遍历
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private volatile Segment current;
+    //滚动互斥，不与sync()共用锁，避免滚动等待force()
+    private final Object rollLock = new Object();
+    private final ScheduledExecutorService flusher;
+
+    static final class Segment{
+        final long baseOffset;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        //预留位置，可能超过capacity（越界的预留会被放弃）
+        final AtomicInteger tail;
+        //已经刷盘的位置，总是记录边界，只在sync()中修改
+        volatile int flushed;
+
+        Segment(long baseOffset, FileChannel channel, MappedByteBuffer buffer, int capacity, int tail){
+            this.baseOffset = baseOffset;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.capacity = capacity;
+            this.tail = new AtomicInteger(tail);
+            this.flushed = tail;
+        }
+
+        int reservedTail(){
+            return Math.min(tail.get(), capacity);
+        }
+    }
+
+    /**
+     * @param dir 日志目录，已有段文件时接着写
+     * @param segmentSize 段大小，4字节对齐，不超过1GB
+     * @param flushIntervalMillis 批量刷盘间隔，0表示不自动刷盘
+     * */
+    public MappedLog(Path dir, int segmentSize, long flushIntervalMillis) throws IOException {
+        if(segmentSize <= HEADER_SIZE || segmentSize > MAX_SEGMENT_SIZE || segmentSize % HEADER_SIZE != 0){
+            throw new IllegalArgumentException("illegal segment size:" + segmentSize);
+        }
+        this.dir = Files.createDirectories(dir);
+        this.segmentSize = segmentSize;
+        recover();
+        if(flushIntervalMillis > 0){
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "mapped-log-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }else{
+            flusher = null;
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(p -> p.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+        for(int i = 0;i < files.size();i++){
+            Path file = files.get(i);
+            long baseOffset = Long.parseLong(file.getFileName().toString().replace(".log", ""));
+            Segment segment = openSegment(baseOffset, 0);
+            //只有最后一个段需要扫描写入位置，之前的段都已经写满
+            if(i == files.size() - 1){
+                segment.tail.set(scanCommitted(segment, 0));
+                segment.flushed = segment.tail.get();
+            }else{
+                segment.tail.set(segment.capacity);
+                segment.flushed = segment.capacity;
+            }
+            segments.add(segment);
+        }
+        if(segments.isEmpty()){
+            segments.add(openSegment(0, 0));
+        }
+        current = segments.get(segments.size() - 1);
+    }
+
+    //从记录边界from开始向后扫描，返回第一条未提交记录的位置，遇到段结束标记时返回段尾
+    private static int scanCommitted(Segment segment, int from){
+        int offset = from;
+        while(offset + HEADER_SIZE <= segment.capacity){
+            int length = (int) INT.getAcquire(segment.buffer, offset);
+            if(length == 0){
+                break;
+            }
+            if(length == END_OF_SEGMENT){
+                return segment.capacity;
+            }
+            offset += recordSize(length);
+        }
+        return Math.min(offset, segment.capacity);
+    }
+
+    private Segment openSegment(long baseOffset, int tail) throws IOException {
+        Path path = dir.resolve(String.format("%020d.log", baseOffset));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            //新文件扩展后内容为0，即所有位置都是未提交
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            return new Segment(baseOffset, channel, buffer, segmentSize, tail);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static int recordSize(int length){
+        return (HEADER_SIZE + length + HEADER_SIZE - 1) & -HEADER_SIZE;
+    }
+
+    /**
+     * 追加一条记录，线程安全
+     * @return 记录在日志中的全局偏移量
+     * */
+    public long append(byte[] data){
+        if(data.length == 0 || recordSize(data.length) > segmentSize){
+            throw new IllegalArgumentException("record length must be in (0, " + (segmentSize - HEADER_SIZE) + "]");
+        }
+        int size = recordSize(data.length);
+        for(;;){
+            Segment segment = current;
+            //段已经写满时不再预留，滚动失败后反复重试也不会让tail溢出
+            if(segment.tail.get() >= segment.capacity){
+                roll(segment);
+                continue;
+            }
+            int position = segment.tail.getAndAdd(size);
+            if(position + size <= segment.capacity){
+                //绝对位置写入不修改buffer的position，多个线程写不同区间是安全的
+                segment.buffer.put(position + HEADER_SIZE, data);
+                INT.setRelease(segment.buffer, position, data.length);
+                return segment.baseOffset + position;
+            }
+            //第一个越过段尾的预留写结束标记，段恰好写满时没有位置写结束标记，Tailer按段尾处理
+            if(position + HEADER_SIZE <= segment.capacity){
+                INT.setRelease(segment.buffer, position, END_OF_SEGMENT);
+            }
+            roll(segment);
+        }
+    }
+
+    //已经被其他线程滚动过时直接返回；创建新段失败时current不变，下一个越过段尾的写入者会再次尝试
+    private void roll(Segment full){
+        synchronized (rollLock) {
+            if(current != full){
+                return;
+            }
+            try {
+                Segment next = openSegment(full.baseOffset + full.capacity, 0);
+                segments.add(next);
+                current = next;
+            } catch (IOException e) {
+                throw new UncheckedIOException("roll segment failed", e);
+            }
+        }
+    }
+
+    //把所有已提交但未刷盘的区间刷到磁盘
+    public synchronized void sync() throws IOException {
+        for(Segment segment : segments){
+            int flushed = segment.flushed;
+            if(flushed == segment.capacity){
+                continue;
+            }
+            int committed = scanCommitted(segment, flushed);
+            if(committed > flushed){
+                segment.buffer.force(flushed, committed - flushed);
+                segment.flushed = committed;
+            }
+        }
+    }
+
+    private void flushQuietly(){
+        try {
+            sync();
+        } catch (IOException | RuntimeException e) {
+            logger.error("flush mapped log failed:" + e);
+        }
+    }
+
+    //下一条记录将要写入的全局偏移量（近似值，并发写入时只增不减）
+    public long endOffset(){
+        Segment segment = current;
+        return segment.baseOffset + segment.reservedTail();
+    }
+
+    public Tailer tailer(){
+        return new Tailer(0, 0);
+    }
+
+    //从全局偏移量开始读，offset必须是某条记录的起始位置
+    public Tailer tailer(long offset){
+        for(int i = segments.size() - 1;i >= 0;i--){
+            Segment segment = segments.get(i);
+            if(segment.baseOffset <= offset){
+                return new Tailer(i, (int) (offset - segment.baseOffset));
+            }
+        }
+        throw new IllegalArgumentException("offset out of range:" + offset);
+    }
+
+    /**
+     * 顺序读取器，非线程安全，每个读线程持有一个
+     * */
+    public class Tailer{
+        private int segmentIndex;
+        private int offset;
+
+        Tailer(int segmentIndex, int offset){
+            this.segmentIndex = segmentIndex;
+            this.offset = offset;
+        }
+
+        /**
+         * 读取下一条已提交的记录，没有新记录时返回null，可以稍后重试
+         * */
+        public byte[] poll(){
+            for(;;){
+                Segment segment = segments.get(segmentIndex);
+                int length = offset + HEADER_SIZE <= segment.capacity
+                        ? (int) INT.getAcquire(segment.buffer, offset) : END_OF_SEGMENT;
+                if(length == 0){
+                    return null;
+                }
+                if(length == END_OF_SEGMENT){
+                    //新段可能还没有发布
+                    if(segmentIndex + 1 >= segments.size()){
+                        return null;
+                    }
+                    segmentIndex++;
+                    offset = 0;
+                    continue;
+                }
+                byte[] data = new byte[length];
+                segment.buffer.get(offset + HEADER_SIZE, data);
+                offset += recordSize(length);
+                return data;
+            }
+        }
+
+        public long position(){
+            return segments.get(segmentIndex).baseOffset + offset;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(flusher != null){
+            flusher.shutdown();
+        }
+        sync();
+        List<IOException> errors = new ArrayList<>();
+        for(Segment segment : segments){
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                errors.add(e);
+            }
+        }
+        if(!errors.isEmpty()){
+            throw errors.get(0);
+        }
+    }
+}
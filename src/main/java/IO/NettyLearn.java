@@ -28,6 +28,8 @@
 ///**
 // * @author 79351
 // * ***Netty学习笔记***
+// * 可运行的版本见netty-echo模块（独立的Maven工程）：NettyEchoServer/NettyServerHandler/NettyClient
+//      * epoll原生传输（非Linux退回NIO） + PooledByteBufAllocator + channelReadComplete批量flush
 // * 1. Netty是什么?
 // *  * 异步网络通信框架，是对JavaNIO的封装，具备高性能，API学习成本低等优点，用来简化网络编程
 // *  * 用来作为底层通信组件开发高性能服务器应用（Dubbo,RocketMQ等）
@@ -0,0 +1,195 @@
+package IO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 伪异步BIO服务器：一个accept线程 + 有界线程池
+ *  * accept线程只负责接收连接，每个连接作为一个任务交给线程池，连接数超过 线程数+队列容量 时触发拒绝策略
+ *  * 连接在工作线程上阻塞读写，工作线程数即同时服务的连接上限
+ *  * 读缓冲为线程本地的byte[]，线程池复用线程，也就复用了读缓冲，不再每个连接分配1MB
+ *  * 协议与ReactorServerDemo相同（FrameDecoder拆帧 + BusinessHandler），用作NIO Reactor的对照组
+ * 拒绝策略：
+ *  * CLOSE_ON_REJECT（默认）：直接关闭被拒绝的连接
+ *  * ThreadPoolExecutor.CallerRunsPolicy：由accept线程处理该连接，期间不再accept，由内核backlog承担排队
+ *  * 也可以传入任意自定义RejectedExecutionHandler，被拒绝的任务为ConnectionTask，可以取出socket
+ * 关闭：阻塞在Socket.read上的线程不响应中断，shutdownNow之外还要关闭所有活跃连接和排队连接的socket
+ * @author fuhaifei
+ * */
+public class PooledBioServer implements Runnable, Closeable {
+    private static Logger logger = LoggerFactory.getLogger(PooledBioServer.class.getName());
+
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    public static final RejectedExecutionHandler CLOSE_ON_REJECT = (r, executor) -> {
+        if(r instanceof ConnectionTask task){
+            logger.warn("worker pool saturated, reject connection " + task.socket.getRemoteSocketAddress());
+            task.closeQuietly();
+        }
+    };
+
+    private static final ThreadLocal<byte[]> READ_BUFFER = ThreadLocal.withInitial(() -> new byte[READ_BUFFER_SIZE]);
+
+    private final ServerSocket serverSocket;
+    private final ThreadPoolExecutor workers;
+    private final BusinessHandler businessHandler;
+    private final DirectBufferPool bufferPool = DirectBufferPool.DEFAULT;
+    //正在工作线程上运行的连接，close()时关闭它们的socket
+    private final Set<ConnectionTask> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    public PooledBioServer(int port, BusinessHandler businessHandler) throws IOException {
+        this(port, businessHandler, Runtime.getRuntime().availableProcessors() * 8, 1024, CLOSE_ON_REJECT);
+    }
+
+    public PooledBioServer(int port, BusinessHandler businessHandler, int workerThreads, int queueCapacity,
+                           RejectedExecutionHandler rejectedHandler) throws IOException {
+        this.businessHandler = businessHandler;
+        AtomicInteger index = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "bio-worker-" + index.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                rejectedHandler);
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(port), 1024);
+    }
+
+    @Override
+    public void run() {
+        while(!closed){
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                workers.execute(new ConnectionTask(socket));
+            } catch (IOException e) {
+                if(!closed){
+                    logger.error(Thread.currentThread().getName() + "accept connection failed:" + e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for(Runnable queued : workers.shutdownNow()){
+            if(queued instanceof ConnectionTask task){
+                task.closeQuietly();
+            }
+        }
+        //关闭socket让阻塞在read上的工作线程抛出异常退出
+        for(ConnectionTask task : connections){
+            task.closeQuietly();
+        }
+    }
+
+    /**
+     * 一个连接的完整生命周期，在工作线程中阻塞执行
+     * */
+    public class ConnectionTask implements Runnable, HandlerContext {
+        final Socket socket;
+        final FrameDecoder frameDecoder = new FrameDecoder.LineFrameDecoder(bufferPool, ReactorServerDemo.MAX_FRAME_LENGTH);
+        OutputStream out;
+
+        ConnectionTask(Socket socket){
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            connections.add(this);
+            //先登记再检查，与close()中的先置标记再遍历配合，不会漏掉刚开始运行的连接
+            if(closed){
+                connections.remove(this);
+                closeQuietly();
+                return;
+            }
+            byte[] buf = READ_BUFFER.get();
+            try (InputStream in = socket.getInputStream()) {
+                out = socket.getOutputStream();
+                int len;
+                while((len = in.read(buf)) != -1){
+                    frameDecoder.decode(ByteBuffer.wrap(buf, 0, len), frame -> businessHandler.handle(this, frame));
+                }
+            } catch (IOException e) {
+                if(!socket.isClosed()){
+                    logger.error(Thread.currentThread().getName() + "connection " + socket.getRemoteSocketAddress() + " failed:" + e);
+                }
+            } finally {
+                connections.remove(this);
+                frameDecoder.release();
+                closeQuietly();
+            }
+        }
+
+        @Override
+        public SocketAddress remoteAddress() {
+            return socket.getRemoteSocketAddress();
+        }
+
+        //业务逻辑一般就在当前工作线程中调用，加锁保证其他线程写回时响应不会交错
+        @Override
+        public synchronized void write(byte[] response) {
+            try {
+                out.write(frameDecoder.frame(response));
+            } catch (IOException e) {
+                closeQuietly();
+            }
+        }
+
+        //普通Socket没有对应的SocketChannel，只能经过用户空间拷贝
+        @Override
+        public synchronized void writeFile(FileChannel file, long position, long count) {
+            try (file) {
+                WritableByteChannel target = Channels.newChannel(out);
+                long sent = 0;
+                while(sent < count){
+                    long n = file.transferTo(position + sent, count - sent, target);
+                    if(n <= 0){
+                        throw new IOException("file truncated while sending");
+                    }
+                    sent += n;
+                }
+            } catch (IOException e) {
+                closeQuietly();
+            }
+        }
+
+        @Override
+        public void close() {
+            closeQuietly();
+        }
+
+        void closeQuietly(){
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package IO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 事件循环监控指标，每个Selector（EventLoop）一份
+ *  * 热路径上只做LongAdder累加，没有锁；LongAdder在竞争时分散到多个cell，
+ *    accept/close计数可能来自其他线程，读写字节数只来自本线程
+ *  * snapshot()获取某一时刻的快照，两个快照相减得到速率（bytes/sec）
+ *  * register()注册为JMX MXBean，可以通过jconsole/jmc查看
+ * 每轮循环的指标：
+ *  * select等待时间：阻塞在select上的时间，越大说明越空闲
+ *  * 处理时间：处理就绪key + 任务队列的时间，越大说明单线程越忙
+ *  * 就绪key数量分布：按2的幂次分桶 [0] [1] [2,3] [4,7] ... [512, +inf)
+ * 异常事件：
+ *  * Selector重建次数：连续多次select提前返回0个key（epoll空轮询）时重建Selector，正常情况下应当一直为0
+ * @author fuhaifei
+ * */
+public class ReactorMetrics {
+    private static Logger logger = LoggerFactory.getLogger(ReactorMetrics.class.getName());
+
+    static final int HISTOGRAM_BUCKETS = 11;
+
+    private final String name;
+    private final LongAdder loops = new LongAdder();
+    private final LongAdder selectWaitNanos = new LongAdder();
+    private final LongAdder processNanos = new LongAdder();
+    private final LongAdder[] readyKeysHistogram = new LongAdder[HISTOGRAM_BUCKETS];
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder selectorRebuilds = new LongAdder();
+    //JMX读取速率时的上一个快照，读写分开记录
+    private volatile Snapshot lastReadSnapshot;
+    private volatile Snapshot lastWriteSnapshot;
+
+    public ReactorMetrics(String name){
+        this.name = name;
+        for(int i = 0;i < HISTOGRAM_BUCKETS;i++){
+            readyKeysHistogram[i] = new LongAdder();
+        }
+    }
+
+    public String name(){
+        return name;
+    }
+
+    void recordLoop(long selectNanos, long processingNanos, int readyKeys){
+        loops.increment();
+        selectWaitNanos.add(selectNanos);
+        processNanos.add(processingNanos);
+        readyKeysHistogram[bucket(readyKeys)].increment();
+    }
+
+    //0 -> 0, 1 -> 1, 2~3 -> 2, 4~7 -> 3 ...
+    static int bucket(int readyKeys){
+        return Math.min(32 - Integer.numberOfLeadingZeros(readyKeys), HISTOGRAM_BUCKETS - 1);
+    }
+
+    void recordAccepted(){
+        accepted.increment();
+    }
+
+    void recordClosed(){
+        closed.increment();
+    }
+
+    void recordRead(long bytes){
+        bytesRead.add(bytes);
+    }
+
+    void recordWritten(long bytes){
+        bytesWritten.add(bytes);
+    }
+
+    void recordSelectorRebuilt(){
+        selectorRebuilds.increment();
+    }
+
+    public Snapshot snapshot(){
+        long[] histogram = new long[HISTOGRAM_BUCKETS];
+        for(int i = 0;i < HISTOGRAM_BUCKETS;i++){
+            histogram[i] = readyKeysHistogram[i].sum();
+        }
+        return new Snapshot(name, System.nanoTime(), loops.sum(), selectWaitNanos.sum(), processNanos.sum(),
+                histogram, accepted.sum(), closed.sum(), bytesRead.sum(), bytesWritten.sum(), selectorRebuilds.sum());
+    }
+
+    /**
+     * 注册到平台MBeanServer，ObjectName为 IO:type=Reactor,name=xxx
+     * */
+    public void register(){
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MXBeanImpl(),
+                    new ObjectName("IO:type=Reactor,name=" + ObjectName.quote(name)));
+        } catch (Exception e) {
+            logger.error("register reactor metrics mbean failed:" + e);
+        }
+    }
+
+    public void unregister(){
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    new ObjectName("IO:type=Reactor,name=" + ObjectName.quote(name)));
+        } catch (Exception e) {
+            logger.error("unregister reactor metrics mbean failed:" + e);
+        }
+    }
+
+    /**
+     * 不可变快照，所有累计值均为自启动以来的总量
+     * */
+    public static class Snapshot{
+        public final String name;
+        public final long timestampNanos;
+        public final long loops;
+        public final long selectWaitNanos;
+        public final long processNanos;
+        public final long[] readyKeysHistogram;
+        public final long accepted;
+        public final long closed;
+        public final long bytesRead;
+        public final long bytesWritten;
+        public final long selectorRebuilds;
+
+        Snapshot(String name, long timestampNanos, long loops, long selectWaitNanos, long processNanos,
+                 long[] readyKeysHistogram, long accepted, long closed, long bytesRead, long bytesWritten,
+                 long selectorRebuilds){
+            this.name = name;
+            this.timestampNanos = timestampNanos;
+            this.loops = loops;
+            this.selectWaitNanos = selectWaitNanos;
+            this.processNanos = processNanos;
+            this.readyKeysHistogram = readyKeysHistogram;
+            this.accepted = accepted;
+            this.closed = closed;
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+            this.selectorRebuilds = selectorRebuilds;
+        }
+
+        public long activeConnections(){
+            return accepted - closed;
+        }
+
+        //相对于上一个快照的读速率
+        public double bytesReadPerSecond(Snapshot previous){
+            return perSecond(bytesRead - previous.bytesRead, previous);
+        }
+
+        public double bytesWrittenPerSecond(Snapshot previous){
+            return perSecond(bytesWritten - previous.bytesWritten, previous);
+        }
+
+        //两个快照之间每轮循环的平均处理时间（微秒）
+        public double avgProcessMicros(Snapshot previous){
+            long loopDelta = loops - previous.loops;
+            return loopDelta == 0 ? 0 : (processNanos - previous.processNanos) / 1000.0 / loopDelta;
+        }
+
+        public double avgSelectWaitMicros(Snapshot previous){
+            long loopDelta = loops - previous.loops;
+            return loopDelta == 0 ? 0 : (selectWaitNanos - previous.selectWaitNanos) / 1000.0 / loopDelta;
+        }
+
+        private double perSecond(long delta, Snapshot previous){
+            long elapsed = timestampNanos - previous.timestampNanos;
+            return elapsed <= 0 ? 0 : delta * 1_000_000_000.0 / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder histogram = new StringBuilder();
+            for(int i = 0;i < readyKeysHistogram.length;i++){
+                if(readyKeysHistogram[i] > 0){
+                    String label = i == 0 ? "0" : i == readyKeysHistogram.length - 1 ? ">=" + (1 << (i - 1)) : "<" + (1 << i);
+                    histogram.append(label).append(':').append(readyKeysHistogram[i]).append(' ');
+                }
+            }
+            return name + "{loops=" + loops + ", selectWaitMs=" + selectWaitNanos / 1_000_000 +
+                    ", processMs=" + processNanos / 1_000_000 + ", accepted=" + accepted + ", closed=" + closed +
+                    ", bytesRead=" + bytesRead + ", bytesWritten=" + bytesWritten +
+                    (selectorRebuilds > 0 ? ", selectorRebuilds=" + selectorRebuilds : "") +
+                    ", readyKeys=[" + histogram.toString().trim() + "]}";
+        }
+    }
+
+    /**
+     * JMX只支持开放类型，速率相对于上一次JMX读取计算
+     * */
+    public interface ReactorMetricsMXBean{
+        long getLoops();
+        long getSelectWaitMillis();
+        long getProcessMillis();
+        long[] getReadyKeysHistogram();
+        long getAccepted();
+        long getClosed();
+        long getActiveConnections();
+        long getBytesRead();
+        long getBytesWritten();
+        double getBytesReadPerSecond();
+        double getBytesWrittenPerSecond();
+        long getSelectorRebuilds();
+    }
+
+    private class MXBeanImpl implements ReactorMetricsMXBean{
+        @Override
+        public long getLoops() {
+            return loops.sum();
+        }
+
+        @Override
+        public long getSelectWaitMillis() {
+            return selectWaitNanos.sum() / 1_000_000;
+        }
+
+        @Override
+        public long getProcessMillis() {
+            return processNanos.sum() / 1_000_000;
+        }
+
+        @Override
+        public long[] getReadyKeysHistogram() {
+            return snapshot().readyKeysHistogram;
+        }
+
+        @Override
+        public long getAccepted() {
+            return accepted.sum();
+        }
+
+        @Override
+        public long getClosed() {
+            return closed.sum();
+        }
+
+        @Override
+        public long getActiveConnections() {
+            return accepted.sum() - closed.sum();
+        }
+
+        @Override
+        public long getBytesRead() {
+            return bytesRead.sum();
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return bytesWritten.sum();
+        }
+
+        @Override
+        public double getBytesReadPerSecond() {
+            return rate(true);
+        }
+
+        @Override
+        public double getBytesWrittenPerSecond() {
+            return rate(false);
+        }
+
+        @Override
+        public long getSelectorRebuilds() {
+            return selectorRebuilds.sum();
+        }
+
+        private double rate(boolean read){
+            Snapshot current = snapshot();
+            Snapshot previous;
+            if(read){
+                previous = lastReadSnapshot;
+                lastReadSnapshot = current;
+            }else{
+                previous = lastWriteSnapshot;
+                lastWriteSnapshot = current;
+            }
+            if(previous == null){
+                return 0;
+            }
+            return read ? current.bytesReadPerSecond(previous) : current.bytesWrittenPerSecond(previous);
+        }
+    }
+}
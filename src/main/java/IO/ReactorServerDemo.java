@@ -6,16 +6,32 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.Scanner;
-import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 /**
  * @author fuhaifei
@@ -24,132 +40,869 @@ import java.util.Set;
 public class ReactorServerDemo {
     private static Logger logger = LoggerFactory.getLogger(ReactorServerDemo.class.getName());
     
-    //单线程版本ReactorServer
-    public class SingleReactor implements Runnable{
-        Selector selector;
+    //默认业务逻辑：回显收到的消息
+    static final BusinessHandler ECHO_HANDLER = (ctx, request) -> {
+        String returnMsg = "we receive your"+ ctx.remoteAddress() +" message:"+
+                new String(request) + " , thanks for you call.";
+        System.out.println("server:"+returnMsg);
+        ctx.write(returnMsg.getBytes());
+    };
+    
+    static final int READ_BUFFER_SIZE = 4096;
+    static final int MAX_FRAME_LENGTH = 1024 * 1024;
+    static final int MAX_GATHER = 64;
+    static final int WRITE_HIGH_WATER_MARK = 64 * 1024;
+    static final int WRITE_LOW_WATER_MARK = 32 * 1024;
+    static final long FILE_CHUNK_SIZE = 1024 * 1024;
+    static final long FILE_BYTES_PER_FLUSH = 4 * 1024 * 1024;
+    //select超时时间，同时也是空闲检测时间轮的tick
+    static final long SELECT_TIMEOUT_MILLIS = 1000;
+    /**
+     * 连续多少次select提前返回且没有就绪key、没有任务时判定为空轮询并重建Selector，0表示不检测
+     * 与Netty的io.netty.selectorAutoRebuildThreshold默认值相同
+     * */
+    static final int SELECTOR_AUTO_REBUILD_THRESHOLD = Integer.getInteger("IO.selectorAutoRebuildThreshold", 512);
+    private static final AtomicInteger LOOP_ID = new AtomicInteger();
+    
+    final BusinessHandler businessHandler;
+    /**
+     * 业务线程池：业务逻辑在此执行，Selector线程只做非阻塞IO和拆帧
+     *  * 拆帧只是扫描分隔符/长度字段并拷贝出完整的请求，与Netty的解码器一样留在IO线程，
+     *    拆帧器的累积缓冲因此只在一个线程中访问；业务线程拿到的是已经拆好的请求
+     *  * 默认为有界线程池，队列满时拒绝并关闭对应连接
+     *  * JDK21+可传入Executors.newVirtualThreadPerTaskExecutor()，每个请求一个虚拟线程
+     * */
+    final Executor handlerExecutor;
+    //读写缓冲均从池中借用，读缓冲每次读事件借还一次，写缓冲在有待写数据期间持有
+    final DirectBufferPool bufferPool = DirectBufferPool.DEFAULT;
+    //每个连接一个拆帧器，默认按行拆帧
+    final Supplier<FrameDecoder> decoderFactory;
+    //空闲超时：读超时为超过该时间没有收到数据，写超时为有待写数据但超过该时间没有写出任何字节；0表示不检测
+    long readIdleTimeoutMillis = 60_000;
+    long writeIdleTimeoutMillis = 30_000;
+    
+    public ReactorServerDemo(){
+        this(ECHO_HANDLER, boundedExecutor(Runtime.getRuntime().availableProcessors() * 2, 10000));
+    }
+    
+    public ReactorServerDemo(BusinessHandler businessHandler, Executor handlerExecutor){
+        this(businessHandler, handlerExecutor,
+                () -> new FrameDecoder.LineFrameDecoder(DirectBufferPool.DEFAULT, MAX_FRAME_LENGTH));
+    }
+    
+    public ReactorServerDemo(BusinessHandler businessHandler, Executor handlerExecutor,
+                             Supplier<FrameDecoder> decoderFactory){
+        this.businessHandler = businessHandler;
+        this.handlerExecutor = handlerExecutor;
+        this.decoderFactory = decoderFactory;
+    }
+    
+    //需要在Reactor启动前设置
+    public ReactorServerDemo idleTimeout(long readIdleTimeoutMillis, long writeIdleTimeoutMillis){
+        this.readIdleTimeoutMillis = readIdleTimeoutMillis;
+        this.writeIdleTimeoutMillis = writeIdleTimeoutMillis;
+        return this;
+    }
+    
+    static ExecutorService boundedExecutor(int threads, int queueCapacity){
+        AtomicInteger index = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "handler-" + index.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+    
+    /**
+     * 事件循环：一个线程 + 一个Selector + 一个任务队列
+     *  * 其他线程不能直接向本Selector注册Channel（register会与阻塞中的select竞争锁），
+     *    统一通过execute()提交任务，由本线程在select间隙执行
+     *  * 空轮询保护：JDK在Linux上的epoll实现存在select不阻塞、立即返回0的bug（连接被RST等情况触发），
+     *    表现为线程在空循环中占满一个CPU。select在超时之前返回、没有就绪key、也没有任务唤醒时计数，
+     *    连续SELECTOR_AUTO_REBUILD_THRESHOLD次后新建Selector，把所有key连同interestOps和attachment迁移过去
+     * */
+    abstract class EventLoop implements Runnable{
+        //重建后替换，其他线程通过execute()唤醒时需要看到新的Selector
+        volatile Selector selector;
+        final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+        //由select的超时驱动，每轮循环推进一次，负责本Selector上所有连接的空闲检测
+        final HashedWheelTimer idleTimer = new HashedWheelTimer(SELECT_TIMEOUT_MILLIS, 512);
+        final ReactorMetrics metrics;
         
-        SingleReactor(){
-            try {
-                //创建socket
-                selector = Selector.open();
-                ServerSocketChannel socketChannel = ServerSocketChannel.open();
-                socketChannel.configureBlocking(false);
-                socketChannel.bind(new InetSocketAddress(80));
-                //注册到selector
-                SelectionKey selectionKey = socketChannel.register(selector, SelectionKey.OP_ACCEPT);
-                selectionKey.attach(new AcceptorHandler());
-                logger.info(Thread.currentThread().getName() + "init server success");
-            }catch (IOException e){
-                logger.error(Thread.currentThread().getName() + "init server error:"+e);
-            }
-            
+        EventLoop() throws IOException {
+            selector = Selector.open();
+            metrics = new ReactorMetrics(getClass().getSimpleName() + "-" + LOOP_ID.getAndIncrement());
+        }
+        
+        public ReactorMetrics metrics(){
+            return metrics;
+        }
+        
+        void execute(Runnable task){
+            taskQueue.offer(task);
+            selector.wakeup();
         }
         
         @Override
         public void run() {
+            metrics.register();
+            int prematureSelects = 0;
             while(!Thread.interrupted()){
                 try {
-                    selector.select(1000);
+                    long selectStart = System.nanoTime();
+                    int readyKeys = selector.select(SELECT_TIMEOUT_MILLIS);
+                    long selectEnd = System.nanoTime();
+                    if(readyKeys > 0 || !taskQueue.isEmpty()
+                            || selectEnd - selectStart >= TimeUnit.MILLISECONDS.toNanos(SELECT_TIMEOUT_MILLIS)){
+                        prematureSelects = 0;
+                    }else if(++prematureSelects == SELECTOR_AUTO_REBUILD_THRESHOLD){
+                        logger.warn(Thread.currentThread().getName() + "select returned prematurely " +
+                                prematureSelects + " times in a row, rebuilding selector");
+                        rebuildSelector();
+                        prematureSelects = 0;
+                    }
                     Iterator<SelectionKey> selectionKeys = selector.selectedKeys().iterator();
                     while(selectionKeys.hasNext()){
                         SelectionKey curKey = selectionKeys.next();
+                        selectionKeys.remove();
                         AbstractHandler handler = (AbstractHandler)curKey.attachment();
                         handler.handle(curKey);
-                        selectionKeys.remove();
                     }
+                    runAllTasks();
+                    idleTimer.advance();
+                    metrics.recordLoop(selectEnd - selectStart, System.nanoTime() - selectEnd, readyKeys);
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
             }
-            logger.info(Thread.currentThread().getName() + "Reactor server exit");
+            logger.info(Thread.currentThread().getName() + "Reactor server exit:" + metrics.snapshot());
+            metrics.unregister();
+            onExit();
             try {
                 selector.close();
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-            
         }
         
-        private interface  AbstractHandler{
-            public void handle(SelectionKey selectionKey);
+        /**
+         * 新建Selector并迁移所有有效的key，只能在本EventLoop线程中调用
+         *  * 分两步：先把所有channel同时注册到新Selector（一个channel可以注册到多个Selector），interestOps和attachment保持不变；
+         *    全部注册完成后再cancel旧key，并通过AbstractHandler.rekey()更新attachment持有的key引用
+         *  * 某个key迁移失败时由AbstractHandler.migrationFailed()决定：连接直接关闭，其余key继续迁移；
+         *    监听socket不能丢弃，放弃本次重建，关闭新Selector（新注册的key随之失效），继续使用旧Selector
+         *  * 新Selector创建失败时同样继续使用旧Selector
+         * */
+        void rebuildSelector(){
+            Selector oldSelector = selector;
+            Selector newSelector;
+            try {
+                newSelector = Selector.open();
+            } catch (IOException e) {
+                logger.error(Thread.currentThread().getName() + "open new selector failed:" + e);
+                return;
+            }
+            List<SelectionKey> oldKeys = new ArrayList<>();
+            List<SelectionKey> newKeys = new ArrayList<>();
+            for(SelectionKey key : oldSelector.keys()){
+                AbstractHandler handler = (AbstractHandler) key.attachment();
+                try {
+                    if(!key.isValid() || key.channel().keyFor(newSelector) != null){
+                        continue;
+                    }
+                    newKeys.add(key.channel().register(newSelector, key.interestOps(), handler));
+                    oldKeys.add(key);
+                } catch (IOException | RuntimeException e) {
+                    logger.error(Thread.currentThread().getName() + "migrate key to new selector failed:" + e);
+                    if(!handler.migrationFailed(key)){
+                        logger.error(Thread.currentThread().getName() + "abort selector rebuild, keep the old selector");
+                        try {
+                            newSelector.close();
+                        } catch (IOException ex) {
+                            logger.error(Thread.currentThread().getName() + "close new selector failed:" + ex);
+                        }
+                        return;
+                    }
+                }
+            }
+            for(int i = 0;i < oldKeys.size();i++){
+                SelectionKey newKey = newKeys.get(i);
+                oldKeys.get(i).cancel();
+                //迁移过程中连接可能已经被关闭，新key随之失效
+                if(newKey.isValid()){
+                    ((AbstractHandler) newKey.attachment()).rekey(newKey);
+                }
+            }
+            int migrated = oldKeys.size();
+            selector = newSelector;
+            try {
+                oldSelector.close();
+            } catch (IOException e) {
+                logger.error(Thread.currentThread().getName() + "close old selector failed:" + e);
+            }
+            metrics.recordSelectorRebuilt();
+            logger.info(Thread.currentThread().getName() + "selector rebuilt, migrated keys:" + migrated);
         }
         
-        private class AcceptorHandler implements AbstractHandler{
-            
-            public AcceptorHandler(){
+        //单个任务失败只记录日志，不能让异常终止事件循环，否则本Selector上的所有连接都会失去响应
+        void runAllTasks(){
+            Runnable task;
+            while((task = taskQueue.poll()) != null){
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    logger.error(Thread.currentThread().getName() + "task failed:" + e);
+                }
             }
-            
-            @Override
-            public void handle(SelectionKey selectionKey) {
-                Selector selector = selectionKey.selector();
-                ServerSocketChannel serverSocketChannel = (ServerSocketChannel)selectionKey.channel();
-                SocketChannel socketChannel;
+        }
+        
+        //在本EventLoop线程中注册新连接，失败时关闭连接，不影响其他连接
+        void registerConnection(SocketChannel socketChannel){
+            try {
+                socketChannel.configureBlocking(false);
+                new RequestHandler(this, socketChannel).register(selector);
+            } catch (IOException | RuntimeException e) {
+                //包括关闭过程中Selector已关闭（ClosedSelectorException），连接已经accept，必须关闭
+                logger.error(Thread.currentThread().getName() + "register socketChannel failed:" + e);
                 try {
-                    socketChannel = serverSocketChannel.accept();
-                    if(socketChannel != null){
-                        logger.info(Thread.currentThread().getName() + "accept socketChannel:" );
-                        socketChannel.configureBlocking(false);
-                        socketChannel.register(selector, SelectionKey.OP_READ, new RequestHandler(socketChannel));
+                    socketChannel.close();
+                } catch (IOException ex) {
+                    logger.error(Thread.currentThread().getName() + "close socket failed:" + ex);
+                }
+            }
+        }
+        
+        void onExit(){
+        }
+    }
+    
+    //单线程版本ReactorServer
+    public class SingleReactor extends EventLoop{
+        
+        SingleReactor() throws IOException {
+            this(80);
+        }
+        
+        SingleReactor(int port) throws IOException {
+            try {
+                //创建socket
+                ServerSocketChannel socketChannel = ServerSocketChannel.open();
+                socketChannel.configureBlocking(false);
+                socketChannel.bind(new InetSocketAddress(port), 1024);
+                //注册到selector
+                SelectionKey selectionKey = socketChannel.register(selector, SelectionKey.OP_ACCEPT);
+                selectionKey.attach(new AcceptorHandler(this, null));
+                logger.info(Thread.currentThread().getName() + "init server success");
+            }catch (IOException e){
+                logger.error(Thread.currentThread().getName() + "init server error:"+e);
+            }
+        }
+    }
+    
+    /**
+     * 主从Reactor版本
+     *  * 主Reactor（boss）只负责accept，新连接按轮询交给从Reactor
+     *  * 从Reactor（worker）各自持有一个Selector和线程，负责连接上的读写，默认数量为CPU核数
+     * */
+    public class MultiReactor extends EventLoop{
+        final SubReactor[] subReactors;
+        final Thread[] subThreads;
+        
+        MultiReactor(int port) throws IOException {
+            this(port, Runtime.getRuntime().availableProcessors());
+        }
+        
+        MultiReactor(int port, int workerCount) throws IOException {
+            subReactors = new SubReactor[workerCount];
+            subThreads = new Thread[workerCount];
+            for(int i = 0;i < workerCount;i++){
+                subReactors[i] = new SubReactor();
+            }
+            ServerSocketChannel socketChannel = ServerSocketChannel.open();
+            socketChannel.configureBlocking(false);
+            socketChannel.bind(new InetSocketAddress(port), 1024);
+            socketChannel.register(selector, SelectionKey.OP_ACCEPT, new AcceptorHandler(this, subReactors));
+            logger.info(Thread.currentThread().getName() + "init multi reactor server success, workers:" + workerCount);
+        }
+        
+        @Override
+        public void run() {
+            for(int i = 0;i < subReactors.length;i++){
+                subThreads[i] = new Thread(subReactors[i], "subReactor-" + i);
+                subThreads[i].start();
+            }
+            super.run();
+        }
+        
+        @Override
+        void onExit() {
+            for(Thread subThread : subThreads){
+                subThread.interrupt();
+            }
+        }
+        
+        //主Reactor + 所有从Reactor的指标快照
+        public List<ReactorMetrics.Snapshot> snapshots(){
+            List<ReactorMetrics.Snapshot> snapshots = new ArrayList<>();
+            snapshots.add(metrics.snapshot());
+            for(SubReactor subReactor : subReactors){
+                snapshots.add(subReactor.metrics.snapshot());
+            }
+            return snapshots;
+        }
+    }
+    
+    //从Reactor，只处理已建立连接的读写事件
+    public class SubReactor extends EventLoop{
+        
+        SubReactor() throws IOException {
+        }
+        
+        //由主Reactor线程调用，注册动作放到本线程执行
+        void register(SocketChannel socketChannel){
+            execute(() -> registerConnection(socketChannel));
+        }
+    }
+    
+    private interface  AbstractHandler{
+        public void handle(SelectionKey selectionKey);
+        
+        //Selector重建后key被替换，持有key引用的handler需要更新
+        default void rekey(SelectionKey selectionKey){
+        }
+        
+        /**
+         * Selector重建时这个key迁移失败
+         * @return true表示已经处理（如关闭连接），其余key继续迁移；false表示不能丢弃（如监听socket），放弃本次重建
+         * */
+        default boolean migrationFailed(SelectionKey selectionKey){
+            return false;
+        }
+    }
+    
+    private class AcceptorHandler implements AbstractHandler{
+        private final EventLoop eventLoop;
+        //为空时为单Reactor模式，连接注册在当前Selector上
+        private final SubReactor[] subReactors;
+        private int next;
+        
+        public AcceptorHandler(EventLoop eventLoop, SubReactor[] subReactors){
+            this.eventLoop = eventLoop;
+            this.subReactors = subReactors;
+        }
+        
+        @Override
+        public void handle(SelectionKey selectionKey) {
+            ServerSocketChannel serverSocketChannel = (ServerSocketChannel)selectionKey.channel();
+            SocketChannel socketChannel;
+            try {
+                //一次就绪事件内尽量accept完所有排队的连接
+                while((socketChannel = serverSocketChannel.accept()) != null){
+                    logger.info(Thread.currentThread().getName() + "accept socketChannel:" );
+                    if(subReactors == null){
+                        eventLoop.registerConnection(socketChannel);
                     }else{
-                        logger.info(Thread.currentThread().getName() + "accept socketChannel is null:" );
+                        subReactors[next].register(socketChannel);
+                        next = (next + 1) % subReactors.length;
                     }
-                } catch (IOException e) {
-                    logger.error(Thread.currentThread().getName() + "accept connection failed:" + e);
-                }
-                selector.wakeup();
-            }
-        }
-        
-        private class RequestHandler implements AbstractHandler{
-            ByteBuffer writeBuffer;
-            public RequestHandler(SocketChannel socketChannel){
-                writeBuffer = ByteBuffer.allocate(10240);
-            }
-            
-            
-            @Override
-            public void handle(SelectionKey selectionKey) {
-                selectionKey.cancel();
-                SocketChannel socketChannel = (SocketChannel)selectionKey.channel();
-                if(selectionKey.isWritable()){
-                    try {
-                        socketChannel.write(writeBuffer);
-                        
-                        //删除写事件
-                        if(writeBuffer.remaining() == 0){
-                            selectionKey.interestOps(selectionKey.interestOps() ^ SelectionKey.OP_WRITE);
-                            //转化为写状态
-                            writeBuffer.clear();
+                }
+            } catch (IOException e) {
+                logger.error(Thread.currentThread().getName() + "accept connection failed:" + e);
+            }
+        }
+    }
+    
+    /**
+     * 连接状态，只在连接所属的Reactor线程中修改
+     *  * READING：没有未完成的请求，只关注OP_READ
+     *  * PROCESSING：请求已交给业务线程池，响应尚未全部写出；继续关注OP_READ以支持流水线请求
+     *  * WRITING：发送缓冲区已满，出站队列中还有数据，额外关注OP_WRITE
+     *  * CLOSING：对端半关闭（read返回-1）或业务主动close，不再读；处理完已收到的请求、写完响应后关闭
+     *  * CLOSED：终态，key已取消，所有buffer已归还
+     * */
+    enum ConnState{
+        READING, PROCESSING, WRITING, CLOSING, CLOSED
+    }
+    
+    //待发送的文件区间，只在Reactor线程中访问
+    static class FileRegion{
+        final FileChannel file;
+        long position;
+        long remaining;
+        
+        FileRegion(FileChannel file, long position, long count){
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+        }
+        
+        //零拷贝发送一段，返回0表示发送缓冲区已满
+        long transferTo(SocketChannel target) throws IOException {
+            long transferred = file.transferTo(position, Math.min(remaining, FILE_CHUNK_SIZE), target);
+            if(transferred == 0 && position >= file.size()){
+                throw new IOException("file truncated while sending, position:" + position);
+            }
+            position += transferred;
+            remaining -= transferred;
+            return transferred;
+        }
+        
+        void close(){
+            try {
+                file.close();
+            } catch (IOException e) {
+                logger.error(Thread.currentThread().getName() + "close file failed:" + e);
+            }
+        }
+    }
+    
+    private class RequestHandler implements AbstractHandler, HandlerContext{
+        final EventLoop eventLoop;
+        final SocketChannel socketChannel;
+        final SocketAddress remoteAddress;
+        SelectionKey selectionKey;
+        ConnState state = ConnState.READING;
+        /**
+         * 出站队列，只在Reactor线程访问
+         *  * 元素为DirectByteBuf，可读部分即待写数据；新响应优先追加到队尾buffer的剩余空间（写合并）
+         *  * 一次gathering write把队列中多个buffer写出，流水线请求的多个响应只需一次系统调用
+         *  * 只有socket发送缓冲区写满（没能一次写完）时才注册OP_WRITE
+         *  * 元素也可以是FileRegion，通过transferTo发送，每次flush最多发送FILE_BYTES_PER_FLUSH，
+         *    剩余部分等下一次OP_WRITE，避免一个大文件独占Reactor线程
+         * */
+        final ArrayDeque<Object> outbound = new ArrayDeque<>();
+        final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        long pendingBytes;
+        boolean flushScheduled;
+        //待写字节超过高水位后暂停读，低于低水位再恢复，慢速客户端不会无限堆积响应
+        boolean readPaused;
+        //同一连接上的请求串行交给业务线程池，保证响应顺序与请求顺序一致
+        final Queue<byte[]> inbound = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean processing = new AtomicBoolean();
+        final FrameDecoder frameDecoder = decoderFactory.get();
+        //活跃时只更新时间戳，O(1)；时间轮任务到期时再根据时间戳判断是否真正空闲
+        long lastReadTime;
+        long lastWriteTime;
+        HashedWheelTimer.Timeout readIdleTimeout;
+        HashedWheelTimer.Timeout writeIdleTimeout;
+        
+        //在连接所属的Reactor线程中创建，register成功后连接才生效
+        public RequestHandler(EventLoop eventLoop, SocketChannel socketChannel) throws IOException {
+            this.eventLoop = eventLoop;
+            this.socketChannel = socketChannel;
+            this.remoteAddress = socketChannel.getRemoteAddress();
+        }
+        
+        //先注册再计数和启动空闲检测：注册失败时没有任何需要撤销的状态，定时任务到期时selectionKey一定不为空
+        void register(Selector selector) throws IOException {
+            selectionKey = socketChannel.register(selector, SelectionKey.OP_READ, this);
+            eventLoop.metrics.recordAccepted();
+            lastReadTime = lastWriteTime = HashedWheelTimer.nowMillis();
+            if(readIdleTimeoutMillis > 0){
+                readIdleTimeout = eventLoop.idleTimer.schedule(this::checkReadIdle, readIdleTimeoutMillis);
+            }
+            if(writeIdleTimeoutMillis > 0){
+                writeIdleTimeout = eventLoop.idleTimer.schedule(this::checkWriteIdle, writeIdleTimeoutMillis);
+            }
+        }
+        
+        private void checkReadIdle(HashedWheelTimer.Timeout timeout){
+            if(state == ConnState.CLOSED){
+                return;
+            }
+            //业务处理中或者正在写回的连接不算读空闲
+            long now = HashedWheelTimer.nowMillis();
+            if(processing.get() || !inbound.isEmpty() || !outbound.isEmpty()){
+                lastReadTime = now;
+            }
+            long idle = now - lastReadTime;
+            if(idle >= readIdleTimeoutMillis){
+                logger.info(Thread.currentThread().getName() + "read idle " + idle + "ms, close " + remoteAddress);
+                closeNow();
+            }else{
+                readIdleTimeout = eventLoop.idleTimer.schedule(this::checkReadIdle, readIdleTimeoutMillis - idle);
+            }
+        }
+        
+        private void checkWriteIdle(HashedWheelTimer.Timeout timeout){
+            if(state == ConnState.CLOSED){
+                return;
+            }
+            long now = HashedWheelTimer.nowMillis();
+            if(outbound.isEmpty()){
+                lastWriteTime = now;
+            }
+            long idle = now - lastWriteTime;
+            if(idle >= writeIdleTimeoutMillis){
+                logger.info(Thread.currentThread().getName() + "write stalled " + idle + "ms, close " + remoteAddress);
+                closeNow();
+            }else{
+                writeIdleTimeout = eventLoop.idleTimer.schedule(this::checkWriteIdle, writeIdleTimeoutMillis - idle);
+            }
+        }
+        
+        
+        @Override
+        public void handle(SelectionKey selectionKey) {
+            if(selectionKey.isWritable()){
+                flush();
+            }
+            if(state != ConnState.CLOSED && state != ConnState.CLOSING && selectionKey.isReadable()){
+                read();
+            }
+        }
+        
+        @Override
+        public void rekey(SelectionKey selectionKey) {
+            this.selectionKey = selectionKey;
+        }
+        
+        @Override
+        public boolean migrationFailed(SelectionKey selectionKey) {
+            closeNow();
+            return true;
+        }
+        
+        private void read(){
+            DirectByteBuf receiveBuffer = DirectByteBuf.allocate(bufferPool, READ_BUFFER_SIZE);
+            lastReadTime = HashedWheelTimer.nowMillis();
+            int read;
+            try{
+                read = receiveBuffer.writeBytes(socketChannel, READ_BUFFER_SIZE);
+            } catch (IOException e){
+                receiveBuffer.release();
+                logger.error(Thread.currentThread().getName() + "read from socket failed:" + e);
+                closeNow();
+                return;
+            }
+            if(read == -1){
+                receiveBuffer.release();
+                //对端关闭了输出方向，已收到的请求仍然要处理完并写回
+                state = ConnState.CLOSING;
+            }else{
+                eventLoop.metrics.recordRead(read);
+                try {
+                    //在Reactor线程中拆帧，一次read可能包含多个请求，拆出的完整请求逐个交给业务线程池；receiveBuffer的所有权交给decoder
+                    frameDecoder.decode(receiveBuffer, this::dispatch);
+                } catch (FrameDecoder.CorruptedFrameException e){
+                    logger.error(Thread.currentThread().getName() + "decode request failed:" + e);
+                    closeNow();
+                    return;
+                }
+            }
+            updateState();
+        }
+        
+        //Reactor线程负责读出字节和拆帧，业务逻辑交给业务线程池
+        private void dispatch(byte[] request){
+            inbound.offer(request);
+            if(processing.compareAndSet(false, true)){
+                submitProcess();
+            }
+        }
+        
+        private void submitProcess(){
+            try {
+                handlerExecutor.execute(this::processInbound);
+            } catch (RejectedExecutionException e){
+                logger.error(Thread.currentThread().getName() + "handler executor rejected request, close " + remoteAddress);
+                inbound.clear();
+                processing.set(false);
+                close();
+            }
+        }
+        
+        //运行在业务线程中
+        private void processInbound(){
+            byte[] request;
+            while((request = inbound.poll()) != null){
+                try {
+                    businessHandler.handle(this, request);
+                } catch (RuntimeException e){
+                    logger.error(Thread.currentThread().getName() + "business handler failed:" + e);
+                }
+            }
+            processing.set(false);
+            //释放标记后可能有新请求入队
+            if(!inbound.isEmpty() && processing.compareAndSet(false, true)){
+                submitProcess();
+                return;
+            }
+            //通知Reactor线程本批请求已处理完，可能需要切换状态（如CLOSING下关闭连接）
+            eventLoop.execute(this::updateState);
+        }
+        
+        @Override
+        public SocketAddress remoteAddress() {
+            return remoteAddress;
+        }
+        
+        @Override
+        public void write(byte[] payload) {
+            eventLoop.execute(() -> {
+                if(state == ConnState.CLOSED){
+                    return;
+                }
+                try {
+                    enqueue(payload);
+                } catch (IllegalArgumentException e) {
+                    //无法正确封帧（如超过长度字段上限），跳过这个响应会让对端的请求和响应错位，只能关闭连接
+                    logger.error(Thread.currentThread().getName() + "encode response to " + remoteAddress + " failed:" + e);
+                    closeNow();
+                    return;
+                }
+                //flush任务排在已提交的写任务之后，同一批任务中的多个响应合并为一次写
+                if(!flushScheduled){
+                    flushScheduled = true;
+                    eventLoop.execute(this::flush);
+                }
+            });
+        }
+        
+        //在Reactor线程中封帧，直接编码进出站buffer
+        private void enqueue(byte[] payload){
+            if(outbound.isEmpty()){
+                //写超时从出现待写数据开始计时
+                lastWriteTime = HashedWheelTimer.nowMillis();
+            }
+            int length = frameDecoder.frameLength(payload.length);
+            //队尾buffer剩余空间足够就直接追加，即使已经写出了一部分：读写索引互不影响
+            DirectByteBuf tail = outbound.peekLast() instanceof DirectByteBuf last && last.writableBytes() >= length
+                    ? last : null;
+            if(tail == null){
+                tail = DirectByteBuf.allocate(bufferPool, Math.max(length, READ_BUFFER_SIZE));
+                outbound.offerLast(tail);
+            }
+            frameDecoder.encode(payload, tail);
+            pendingBytes += length;
+        }
+        
+        private void flush(){
+            flushScheduled = false;
+            if(state == ConnState.CLOSED){
+                return;
+            }
+            try {
+                long fileBytes = 0;
+                while(!outbound.isEmpty()){
+                    if(outbound.peekFirst() instanceof FileRegion region){
+                        long transferred = region.transferTo(socketChannel);
+                        if(transferred > 0){
+                            lastWriteTime = HashedWheelTimer.nowMillis();
+                            eventLoop.metrics.recordWritten(transferred);
+                            fileBytes += transferred;
+                        }
+                        if(region.remaining == 0){
+                            region.close();
+                            outbound.pollFirst();
+                            continue;
                         }
-                    }catch (IOException e){
-                        logger.error(Thread.currentThread().getName() + "write into socket failed");
+                        //发送缓冲区已满，或者本轮发送量已达上限，交给下一次OP_WRITE
+                        if(transferred == 0 || fileBytes >= FILE_BYTES_PER_FLUSH){
+                            break;
+                        }
+                        continue;
                     }
-                }else{
-                    ByteBuffer receiveBuffer = ByteBuffer.allocate(1024);
-                    try{
-                        socketChannel.read(receiveBuffer);
-                        receiveBuffer.flip();
-                        //写入write buffer
-                        String returnMsg = "we receive your"+ socketChannel.getRemoteAddress() +" message:"+
-                                new String(receiveBuffer.array(), 0, receiveBuffer.limit())
-                                + " , thanks for you call.";
-                        System.out.println("server:"+returnMsg);
-                        //向writeBuffer中写入
-                        writeBuffer.put(returnMsg.getBytes());
-                        //转化为读事件
-                        writeBuffer.flip();
-                        //注册事件
-                        selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
-                    } catch (IOException e){
-                        logger.error(Thread.currentThread().getName() + "read from socket failed");
+                    //连续的buffer一次gathering write写出
+                    int count = 0;
+                    long offered = 0;
+                    for(Object entry : outbound){
+                        if(!(entry instanceof DirectByteBuf buffer)){
+                            break;
+                        }
+                        gather[count++] = buffer.internalNioBuffer(buffer.readerIndex(), buffer.readableBytes());
+                        offered += buffer.readableBytes();
+                        if(count == gather.length){
+                            break;
+                        }
+                    }
+                    long written = socketChannel.write(gather, 0, count);
+                    Arrays.fill(gather, 0, count, null);
+                    pendingBytes -= written;
+                    if(written > 0){
+                        lastWriteTime = HashedWheelTimer.nowMillis();
+                        eventLoop.metrics.recordWritten(written);
+                    }
+                    //按写出的字节数依次推进各buffer的readerIndex，写完的归还
+                    long remaining = written;
+                    while(outbound.peekFirst() instanceof DirectByteBuf head){
+                        int consumed = (int) Math.min(head.readableBytes(), remaining);
+                        head.skipBytes(consumed);
+                        remaining -= consumed;
+                        if(head.isReadable()){
+                            break;
+                        }
+                        outbound.pollFirst();
+                        head.release();
+                    }
+                    //没有全部写出说明发送缓冲区已满，等待OP_WRITE
+                    if(written < offered){
+                        break;
                     }
                 }
+            } catch (IOException e){
+                logger.error(Thread.currentThread().getName() + "write into socket failed:" + e);
+                closeNow();
+                return;
+            }
+            updateState();
+        }
+        
+        /**
+         * 根据当前的处理进度计算状态，并且统一在这里修改interestOps
+         *  * key只在连接建立时注册一次，之后只修改interestOps，不会cancel后重新注册
+         *  * 关闭后不再修改interestOps，避免CancelledKeyException
+         * */
+        private void updateState(){
+            if(state == ConnState.CLOSED){
+                return;
+            }
+            boolean busy = processing.get() || !inbound.isEmpty();
+            if(state == ConnState.CLOSING){
+                if(!busy && outbound.isEmpty()){
+                    closeNow();
+                    return;
+                }
+            }else if(!outbound.isEmpty() && !flushScheduled){
+                state = ConnState.WRITING;
+            }else if(busy || !outbound.isEmpty()){
+                state = ConnState.PROCESSING;
+            }else{
+                state = ConnState.READING;
+            }
+            if(readPaused ? pendingBytes < WRITE_LOW_WATER_MARK : pendingBytes > WRITE_HIGH_WATER_MARK){
+                readPaused = !readPaused;
+            }
+            int interestOps = 0;
+            if(state != ConnState.CLOSING && !readPaused){
+                interestOps |= SelectionKey.OP_READ;
+            }
+            if(state == ConnState.WRITING || state == ConnState.CLOSING && !outbound.isEmpty()){
+                interestOps |= SelectionKey.OP_WRITE;
+            }
+            if(selectionKey.interestOps() != interestOps){
+                selectionKey.interestOps(interestOps);
+            }
+        }
+        
+        @Override
+        public void writeFile(FileChannel file, long position, long count) {
+            FileRegion region = new FileRegion(file, position, count);
+            eventLoop.execute(() -> {
+                if(state == ConnState.CLOSED || count <= 0){
+                    region.close();
+                    return;
+                }
+                if(outbound.isEmpty()){
+                    lastWriteTime = HashedWheelTimer.nowMillis();
+                }
+                outbound.offerLast(region);
+                if(!flushScheduled){
+                    flushScheduled = true;
+                    eventLoop.execute(this::flush);
+                }
+            });
+        }
+        
+        //优雅关闭：停止读，已收到的请求处理完、响应写完后再关闭
+        @Override
+        public void close() {
+            eventLoop.execute(() -> {
+                if(state != ConnState.CLOSED){
+                    state = ConnState.CLOSING;
+                    updateState();
+                }
+            });
+        }
+        
+        //立即关闭，用于IO异常
+        private void closeNow(){
+            if(state == ConnState.CLOSED){
+                return;
+            }
+            state = ConnState.CLOSED;
+            eventLoop.metrics.recordClosed();
+            selectionKey.cancel();
+            if(readIdleTimeout != null){
+                readIdleTimeout.cancel();
+            }
+            if(writeIdleTimeout != null){
+                writeIdleTimeout.cancel();
+            }
+            Object entry;
+            while((entry = outbound.pollFirst()) != null){
+                if(entry instanceof DirectByteBuf buffer){
+                    buffer.release();
+                }else{
+                    ((FileRegion) entry).close();
+                }
+            }
+            pendingBytes = 0;
+            frameDecoder.release();
+            try {
+                socketChannel.close();
+            } catch (IOException e) {
+                logger.error(Thread.currentThread().getName() + "close socket failed:" + e);
             }
         }
     }
     
+    /**
+     * 模拟空轮询：另一个线程不停wakeup，select每次立即返回0且没有任务
+     * 期望：达到阈值后Selector被重建，已建立的连接迁移到新Selector后仍然可以正常回显
+     * */
+    @Test
+    public void testSelectorRebuild() throws IOException, InterruptedException {
+        ReactorServerDemo server = new ReactorServerDemo(EchoBenchmark.ECHO, Runnable::run);
+        SingleReactor reactor = server.new SingleReactor(19500);
+        Thread serverThread = new Thread(reactor, "rebuildReactor");
+        serverThread.start();
+        try (SocketChannel client = SocketChannel.open(new InetSocketAddress("127.0.0.1", 19500))) {
+            System.out.println("before rebuild:" + echo(client, "ping"));
+            Thread spinner = new Thread(() -> {
+                while(!Thread.currentThread().isInterrupted()){
+                    reactor.selector.wakeup();
+                }
+            }, "spinner");
+            spinner.start();
+            long deadline = System.currentTimeMillis() + 10_000;
+            while(reactor.metrics.snapshot().selectorRebuilds == 0 && System.currentTimeMillis() < deadline){
+                Thread.sleep(10);
+            }
+            spinner.interrupt();
+            spinner.join();
+            System.out.println("selector rebuilds:" + reactor.metrics.snapshot().selectorRebuilds);
+            System.out.println("after rebuild:" + echo(client, "pong"));
+        } finally {
+            serverThread.interrupt();
+            serverThread.join();
+        }
+    }
+    
+    private static String echo(SocketChannel client, String line) throws IOException {
+        client.write(ByteBuffer.wrap((line + "\n").getBytes()));
+        ByteBuffer response = ByteBuffer.allocate(256);
+        while(response.position() == 0 || response.get(response.position() - 1) != '\n'){
+            if(client.read(response) < 0){
+                throw new IOException("connection closed");
+            }
+        }
+        return new String(response.array(), 0, response.position() - 1);
+    }
+    
     public void testSingleReactor() throws IOException {
-        Thread serverThread = new Thread(new SingleReactor(), "serverClient");
+        testReactor(new SingleReactor());
+    }
+    
+    public void testMultiReactor() throws IOException {
+        testReactor(new MultiReactor(80));
+    }
+    
+    private void testReactor(EventLoop server) throws IOException {
+        Thread serverThread = new Thread(server, "serverClient");
         serverThread.start();
         
         //启动两个线程进行交互
@@ -163,7 +916,7 @@ public class ReactorServerDemo {
                 ByteBuffer sendBuffer = ByteBuffer.allocate(1024);
                 logger.info("heartbeat client connection established");
                 while(!Thread.interrupted()){
-                    sendBuffer.put("heartbeat client heart beat message".getBytes());
+                    sendBuffer.put("heartbeat client heart beat message\n".getBytes());
                     sendBuffer.flip();
                     socketChannel.write(sendBuffer);
                     sendBuffer.clear();
@@ -192,7 +945,7 @@ public class ReactorServerDemo {
             String nextLine;
             while(!Objects.equals(nextLine = scanner.nextLine(), "exit")){
                 logger.info("input:" + nextLine);
-                sendBuffer.put(("main Client" + nextLine).getBytes());
+                sendBuffer.put(("main Client" + nextLine + "\n").getBytes());
                 sendBuffer.flip();
                 socketChannel.write(sendBuffer);
                 sendBuffer.clear();
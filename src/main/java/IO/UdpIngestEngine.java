@@ -0,0 +1,316 @@
+package IO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * UDP批量接收引擎，用于指标类流量（大量小报文、允许少量丢失）
+ *  * 每个接收线程一个Selector + 一个非阻塞DatagramChannel
+ *  * 一次可读事件循环receive最多batchSize个报文，放进预先分配好的直接内存环中，凑成一批交给消费者
+ *      * 一批满了说明socket接收队列里可能还有数据，继续读下一批，不回到select
+ *      * 环由一块池化直接内存切片而成，接收时不需要从native内存拷贝到堆，也没有每个报文的分配
+ *  * 多接收线程：每个线程的channel都设置SO_REUSEPORT绑定到同一端口，内核按四元组哈希把报文分给各个socket
+ *      * 同一发送端的报文总是落在同一个接收线程上，保持了单个发送端的顺序
+ *      * 不支持SO_REUSEPORT的平台退化为单接收线程
+ *  * 报文大于packetSize时超出部分被丢弃（DatagramChannel.receive的语义）
+ * 消费者在接收线程中调用，Batch及其中的ByteBuffer只在accept()期间有效，需要保留的数据要拷贝出来
+ * @author fuhaifei
+ * */
+public class UdpIngestEngine implements Closeable {
+    private static Logger logger = LoggerFactory.getLogger(UdpIngestEngine.class.getName());
+
+    static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+    static final long SELECT_TIMEOUT_MILLIS = 1000;
+
+    @FunctionalInterface
+    public interface BatchConsumer{
+        void accept(Batch batch);
+    }
+
+    /**
+     * 一批报文，packet(i)处于读模式
+     * */
+    public static final class Batch{
+        private final int receiverId;
+        private final ByteBuffer[] packets;
+        private final SocketAddress[] senders;
+        private int size;
+
+        Batch(int receiverId, ByteBuffer[] packets){
+            this.receiverId = receiverId;
+            this.packets = packets;
+            this.senders = new SocketAddress[packets.length];
+        }
+
+        public int receiverId(){
+            return receiverId;
+        }
+
+        public int size(){
+            return size;
+        }
+
+        public ByteBuffer packet(int index){
+            return packets[index];
+        }
+
+        public SocketAddress sender(int index){
+            return senders[index];
+        }
+    }
+
+    private final int batchSize;
+    private final int packetSize;
+    private final BatchConsumer consumer;
+    private final DirectBufferPool bufferPool = DirectBufferPool.DEFAULT;
+    private final List<Receiver> receivers = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final InetSocketAddress localAddress;
+    private final LongAdder packets = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private volatile boolean closed;
+
+    /**
+     * @param bindAddress 监听地址，端口为0时由系统分配，所有接收线程共用该端口
+     * @param receiverThreads 接收线程数
+     * @param batchSize 每批最多的报文数
+     * @param packetSize 单个报文的最大字节数
+     * */
+    public UdpIngestEngine(InetSocketAddress bindAddress, int receiverThreads, int batchSize, int packetSize,
+                           BatchConsumer consumer) throws IOException {
+        this.batchSize = batchSize;
+        this.packetSize = packetSize;
+        this.consumer = consumer;
+        boolean reusePort = receiverThreads > 1 && supportsReusePort();
+        if(receiverThreads > 1 && !reusePort){
+            logger.warn("SO_REUSEPORT not supported, fall back to a single receiver thread");
+            receiverThreads = 1;
+        }
+        InetSocketAddress address = bindAddress;
+        try {
+            for(int i = 0;i < receiverThreads;i++){
+                Receiver receiver = new Receiver(i, address, reusePort);
+                receivers.add(receiver);
+                //端口为0时，后续channel绑定到第一个channel实际分配的端口
+                address = (InetSocketAddress) receiver.channel.getLocalAddress();
+            }
+        } catch (IOException e) {
+            for(Receiver receiver : receivers){
+                receiver.dispose();
+            }
+            throw e;
+        }
+        this.localAddress = address;
+    }
+
+    static boolean supportsReusePort(){
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public void start(){
+        for(Receiver receiver : receivers){
+            Thread thread = new Thread(receiver, "udp-receiver-" + receiver.id);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    public InetSocketAddress localAddress(){
+        return localAddress;
+    }
+
+    public int receiverThreads(){
+        return receivers.size();
+    }
+
+    public long packets(){
+        return packets.sum();
+    }
+
+    public long batches(){
+        return batches.sum();
+    }
+
+    public long bytes(){
+        return bytes.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if(threads.isEmpty()){
+            for(Receiver receiver : receivers){
+                receiver.dispose();
+            }
+            return;
+        }
+        for(Receiver receiver : receivers){
+            receiver.selector.wakeup();
+        }
+        for(Thread thread : threads){
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while closing udp receivers", e);
+            }
+        }
+    }
+
+    private class Receiver implements Runnable{
+        final int id;
+        final DatagramChannel channel;
+        final Selector selector;
+        //整个环来自一块池化的直接内存
+        final ByteBuffer slab;
+        final Batch batch;
+
+        Receiver(int id, InetSocketAddress address, boolean reusePort) throws IOException {
+            this.id = id;
+            this.channel = DatagramChannel.open();
+            this.selector = Selector.open();
+            try {
+                if(reusePort){
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                //内核接收队列，消费者偶尔变慢时由它缓冲，实际大小受net.core.rmem_max限制
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+                channel.bind(address);
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ);
+            } catch (IOException e) {
+                closeQuietly();
+                throw e;
+            }
+            this.slab = bufferPool.acquire(batchSize * packetSize);
+            ByteBuffer[] ring = new ByteBuffer[batchSize];
+            for(int i = 0;i < batchSize;i++){
+                ring[i] = slab.slice(i * packetSize, packetSize);
+            }
+            this.batch = new Batch(id, ring);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(!closed){
+                    if(selector.select(SELECT_TIMEOUT_MILLIS) == 0){
+                        continue;
+                    }
+                    selector.selectedKeys().clear();
+                    drain();
+                }
+            } catch (IOException e) {
+                if(!closed){
+                    logger.error(Thread.currentThread().getName() + "receive datagram failed:" + e);
+                }
+            } finally {
+                dispose();
+            }
+        }
+
+        private void drain() throws IOException {
+            ByteBuffer[] ring = batch.packets;
+            int count;
+            do {
+                count = 0;
+                long received = 0;
+                while(count < batchSize){
+                    ByteBuffer buffer = ring[count];
+                    SocketAddress sender = channel.receive(buffer);
+                    if(sender == null){
+                        break;
+                    }
+                    buffer.flip();
+                    received += buffer.remaining();
+                    batch.senders[count++] = sender;
+                }
+                if(count == 0){
+                    return;
+                }
+                batch.size = count;
+                try {
+                    consumer.accept(batch);
+                } catch (RuntimeException e) {
+                    logger.error(Thread.currentThread().getName() + "udp batch consumer failed:" + e);
+                }
+                for(int i = 0;i < count;i++){
+                    ring[i].clear();
+                    batch.senders[i] = null;
+                }
+                packets.add(count);
+                batches.increment();
+                bytes.add(received);
+            } while(count == batchSize && !closed);
+        }
+
+        void dispose(){
+            closeQuietly();
+            bufferPool.release(slab);
+        }
+
+        void closeQuietly(){
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 发送端：connect到目标地址的DatagramChannel
+     *  * connect后write不需要每个报文解析/检查目标地址，比send(buffer, address)开销小
+     *  * 批量发送为连续write，Java没有sendmmsg，批量只能减少调用方的循环和加锁开销
+     * 非线程安全，每个发送线程持有一个
+     * */
+    public static class Sender implements Closeable{
+        private final DatagramChannel channel;
+
+        public Sender(InetSocketAddress target) throws IOException {
+            this.channel = DatagramChannel.open();
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, RECEIVE_BUFFER_SIZE);
+            channel.connect(target);
+        }
+
+        public int send(ByteBuffer packet) throws IOException {
+            return channel.write(packet);
+        }
+
+        //依次发送packets[offset, offset + length)，每个buffer是一个报文，返回发送的字节数
+        public long send(ByteBuffer[] packets, int offset, int length) throws IOException {
+            long sent = 0;
+            for(int i = offset;i < offset + length;i++){
+                sent += channel.write(packets[i]);
+            }
+            return sent;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
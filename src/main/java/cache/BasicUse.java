@@ -4,34 +4,123 @@ import com.google.common.base.Optional;
 import com.google.common.cache.*;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import org.junit.Assert;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BasicUse {
 
     public static class MockDB{
+        //getData被调用的次数，用于验证缓存是否挡住了重复请求
+        private static final AtomicInteger CALLS = new AtomicInteger();
+
+        public static int calls(){
+            return CALLS.get();
+        }
+
+        public static void resetCalls(){
+            CALLS.set(0);
+        }
+
         public static List<String> getData(String key){
             System.out.println("getting from DB,key:" + key + " please wait...");
-            List<String> returnList = null;
+            CALLS.incrementAndGet();
             // 模仿从数据库中取数据
             try {
-                switch (key) {
-                    case "CN" -> returnList = ImmutableList.of("上海", "北京", "广州", "深圳");
-                    case "UK" -> returnList = ImmutableList.of("stanford", "london", "Birmingham", "Glasgow");
-                    case "USA" -> returnList = ImmutableList.of("Birmingham", "Montgomery", "Mobile", "Miami");
-                    case "EU" -> returnList = ImmutableList.of("Austria", "Belgium", "Bulgaria", "Croatia");
-                }
+                Thread.sleep(100);
+            } catch (Exception e) {
+                // 记日志
+            }
+            return query(key);
+        }
+
+        //批量查询，一次往返取回所有key，耗时与单个key相同
+        public static Map<String, List<String>> getAll(Collection<? extends String> keys){
+            System.out.println("getting from DB,keys:" + keys + " please wait...");
+            CALLS.incrementAndGet();
+            try {
+                Thread.sleep(100);
             } catch (Exception e) {
                 // 记日志
             }
-            return Optional.fromNullable(returnList).or(Collections.EMPTY_LIST);
+            Map<String, List<String>> result = new HashMap<>();
+            for(String key : keys){
+                result.put(key, query(key));
+            }
+            return result;
+        }
+
+        static List<String> query(String key){
+            List<String> returnList = null;
+            switch (key) {
+                case "CN" -> returnList = ImmutableList.of("上海", "北京", "广州", "深圳");
+                case "UK" -> returnList = ImmutableList.of("stanford", "london", "Birmingham", "Glasgow");
+                case "USA" -> returnList = ImmutableList.of("Birmingham", "Montgomery", "Mobile", "Miami");
+                case "EU" -> returnList = ImmutableList.of("Austria", "Belgium", "Bulgaria", "Croatia");
+            }
+            return Optional.fromNullable(returnList).or(Collections.emptyList());
+        }
+
+        //单个和批量查询都走MockDB的Loader
+        public static LocalCache.Loader<String, List<String>> loader(){
+            return new LocalCache.Loader<String, List<String>>() {
+                @Override
+                public List<String> load(String key) {
+                    return getData(key);
+                }
+
+                @Override
+                public Map<String, List<String>> loadAll(Collection<? extends String> keys) {
+                    return getAll(keys);
+                }
+            };
         }
     }
 
+    //List<String>的序列化：元素个数 + 每个元素（长度 + UTF-8字节）
+    public static final Serializer<List<String>> CITY_SERIALIZER = new Serializer<List<String>>() {
+        @Override
+        public byte[] serialize(List<String> value) {
+            byte[][] elements = new byte[value.size()][];
+            int length = 4;
+            for(int i = 0;i < elements.length;i++){
+                elements[i] = value.get(i).getBytes(StandardCharsets.UTF_8);
+                length += 4 + elements[i].length;
+            }
+            ByteBuffer out = ByteBuffer.allocate(length).putInt(elements.length);
+            for(byte[] element : elements){
+                out.putInt(element.length).put(element);
+            }
+            return out.array();
+        }
+
+        @Override
+        public List<String> deserialize(ByteBuffer in) {
+            int size = in.getInt();
+            List<String> value = new ArrayList<>(size);
+            for(int i = 0;i < size;i++){
+                byte[] element = new byte[in.getInt()];
+                in.get(element);
+                value.add(new String(element, StandardCharsets.UTF_8));
+            }
+            return value;
+        }
+    };
+
     @Test
     public void testGuava(){
         LoadingCache<String, List<String>> cityCache = CacheBuilder.newBuilder()
@@ -76,4 +165,237 @@ public class BasicUse {
             throw new RuntimeException(e);
         }
     }
+
+    //与testGuava相同的场景，改用LocalCache；时间由手动推进的ticker控制，不依赖sleep
+    @Test
+    public void testLocalCache(){
+        AtomicLong nanos = new AtomicLong();
+        LocalCache<String, List<String>> cityCache = LocalCache.newBuilder()
+                .maximumSize(2)
+                .expireAfterWrite(3, TimeUnit.SECONDS)
+                .removalListener((String key, List<String> value, LocalCache.RemovalCause cause) ->
+                        System.out.println("key {" + key + "} value {" + value + "} removed for:" + cause))
+                .ticker(nanos::get)
+                .recordStats()
+                .build(MockDB::getData);
+        MockDB.resetCalls();
+
+        System.out.println("load from cache once : " + cityCache.get("USA"));
+        System.out.println("load from cache once : " + cityCache.get("CN"));
+        System.out.println("load from cache once : " + cityCache.get("UK"));
+        Assert.assertEquals(3, MockDB.calls());
+        //容量为2，最早写入的USA已被淘汰，重新加载
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        System.out.println("load from cache two : " + cityCache.get("USA"));
+        Assert.assertEquals(4, MockDB.calls());
+        //USA写入2秒，未过期
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        System.out.println("load from cache three : " + cityCache.get("USA"));
+        Assert.assertEquals(4, MockDB.calls());
+        //USA写入4秒，已过期
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        System.out.println("load from cache four : " + cityCache.get("USA"));
+        Assert.assertEquals(5, MockDB.calls());
+        System.out.println("load not exist key from cache : " + cityCache.get("C"));
+        Assert.assertEquals(6, MockDB.calls());
+        System.out.println(cityCache.stats());
+    }
+
+    //刷新：与testLocalCache相同的3秒过期，另外写入1秒后异步刷新，持续读取的USA一直返回缓存值，不会阻塞在MockDB上
+    //时间由手动推进的ticker控制，刷新任务先收集起来再手动执行，可以断言刷新期间读到的是旧值
+    @Test
+    public void testRefreshAfterWrite(){
+        AtomicLong nanos = new AtomicLong();
+        List<Runnable> refreshTasks = new ArrayList<>();
+        LocalCache<String, List<String>> cityCache = LocalCache.newBuilder()
+                .maximumSize(2)
+                .refreshAfterWrite(1, TimeUnit.SECONDS)
+                .expireAfterWrite(3, TimeUnit.SECONDS)
+                .executor(refreshTasks::add)
+                .ticker(nanos::get)
+                .recordStats()
+                .build(MockDB::getData);
+        MockDB.resetCalls();
+        cityCache.get("USA");
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        cityCache.get("USA");
+        Assert.assertTrue(refreshTasks.isEmpty());
+        //到达刷新时间：返回旧值，只提交一个刷新任务，再次读取不会重复提交
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        Assert.assertEquals(MockDB.query("USA"), cityCache.get("USA"));
+        cityCache.get("USA");
+        Assert.assertEquals(1, refreshTasks.size());
+        Assert.assertEquals(1, MockDB.calls());
+        refreshTasks.remove(0).run();
+        Assert.assertEquals(2, MockDB.calls());
+        //第一次写入3.5秒后仍然命中：刷新重置了写入时间，不会过期
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(2500));
+        cityCache.get("USA");
+        Assert.assertEquals(2, MockDB.calls());
+        Assert.assertEquals(1, refreshTasks.size());
+        refreshTasks.remove(0).run();
+        Assert.assertEquals(3, MockDB.calls());
+        System.out.println(cityCache.stats());
+
+        //刷新失败时继续返回旧值，下次刷新按指数退避推迟：100ms后第一次，之后间隔200、400、800ms
+        AtomicInteger reloads = new AtomicInteger();
+        LocalCache<String, String> failing = LocalCache.newBuilder()
+                .refreshAfterWrite(100, TimeUnit.MILLISECONDS)
+                .executor(Runnable::run)
+                .ticker(nanos::get)
+                .build(new LocalCache.Loader<String, String>() {
+                    @Override
+                    public String load(String key) {
+                        return key + "-v1";
+                    }
+
+                    @Override
+                    public String reload(String key, String oldValue) {
+                        reloads.incrementAndGet();
+                        throw new IllegalStateException("db down");
+                    }
+                });
+        failing.get("CN");
+        for(int i = 0;i < 20;i++){
+            nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+            Assert.assertEquals("CN-v1", failing.get("CN"));
+        }
+        System.out.println("2s of reads with db down, value:" + failing.get("CN") + ", reload attempts:" + reloads.get());
+        Assert.assertEquals(4, reloads.get());
+    }
+
+    //单飞加载：32个线程同时请求同一个未缓存的key，只访问一次数据库
+    @Test
+    public void testSingleFlight() throws InterruptedException {
+        LocalCache<String, List<String>> cityCache = LocalCache.newBuilder()
+                .maximumSize(100)
+                .build(MockDB::getData);
+        MockDB.resetCalls();
+        int threads = 32;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for(int i = 0;i < threads;i++){
+            new Thread(() -> {
+                try {
+                    start.await();
+                    cityCache.get("CN");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        System.out.println(threads + " concurrent misses on CN, MockDB.getData calls:" + MockDB.calls());
+        Assert.assertEquals(1, MockDB.calls());
+    }
+
+    @Test
+    public void testWindowTinyLfu(){
+        //热点key访问多次后，一次性扫描1000个新key：LRU的热点全部被挤出，W-TinyLFU拒绝频率更低的扫描key
+        for(boolean windowTinyLfu : new boolean[]{false, true}){
+            LocalCache.Builder<Object, Object> builder = LocalCache.newBuilder().maximumSize(100).recordStats();
+            if(windowTinyLfu){
+                builder.windowTinyLfu();
+            }
+            LocalCache<Integer, Integer> cache = builder.build(key -> key);
+            for(int round = 0;round < 5;round++){
+                for(int key = 0;key < 50;key++){
+                    cache.get(key);
+                }
+            }
+            for(int key = 1000;key < 2000;key++){
+                cache.get(key);
+            }
+            int hotLeft = 0;
+            for(int key = 0;key < 50;key++){
+                if(cache.getIfPresent(key) != null){
+                    hotLeft++;
+                }
+            }
+            System.out.println((windowTinyLfu ? "w-tinylfu" : "lru") + " hot keys left after scan:" + hotLeft + "/50");
+        }
+    }
+
+    //批量读取：一个页面需要4个地区，getAll只访问一次数据库；微批模式下4个线程各自get，也被合并成一次
+    @Test
+    public void testGetAll() throws InterruptedException {
+        LocalCache<String, List<String>> cityCache = LocalCache.newBuilder()
+                .maximumSize(100)
+                .build(MockDB.loader());
+        MockDB.resetCalls();
+        System.out.println("getAll : " + cityCache.getAll(Arrays.asList("CN", "UK", "USA", "EU")));
+        System.out.println("getAll again : " + cityCache.getAll(Arrays.asList("CN", "EU")).keySet());
+        System.out.println("MockDB calls:" + MockDB.calls());
+        Assert.assertEquals(1, MockDB.calls());
+
+        //批次大小等于不同key的个数：第4个key到达时立即发出，不依赖线程在maxDelay内全部到达
+        String[] keys = new String[]{"CN", "UK", "USA", "EU"};
+        LocalCache<String, List<String>> batchingCache = LocalCache.newBuilder()
+                .maximumSize(100)
+                .batchLoads(keys.length, 10, TimeUnit.SECONDS)
+                .build(MockDB.loader());
+        MockDB.resetCalls();
+        CountDownLatch done = new CountDownLatch(keys.length * 2);
+        long start = System.nanoTime();
+        //每个key两个线程，第二个线程等待同一次加载或者直接命中
+        for(int i = 0;i < keys.length * 2;i++){
+            String key = keys[i % keys.length];
+            new Thread(() -> {
+                batchingCache.get(key);
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        System.out.println(keys.length * 2 + " concurrent misses on " + keys.length + " keys, MockDB calls:" +
+                MockDB.calls() + ", took " + (System.nanoTime() - start) / 1_000_000 + "ms");
+        Assert.assertEquals(1, MockDB.calls());
+        Assert.assertEquals(keys.length, batchingCache.size());
+    }
+
+    //堆外层：堆内只保留2个节点，其余降级到直接内存，再次读取时从堆外提升回来，不需要访问数据库
+    @Test
+    public void testOffHeap(){
+        LocalCache<String, List<String>> cityCache = LocalCache.newBuilder()
+                .maximumSize(2)
+                .offHeap(1 << 20, CITY_SERIALIZER)
+                .recordStats()
+                .build(MockDB::getData);
+        MockDB.resetCalls();
+        String[] keys = new String[]{"CN","UK","USA","EU"};
+        for(String key : keys){
+            cityCache.get(key);
+        }
+        Assert.assertEquals(4, MockDB.calls());
+        //被挤出堆的值从堆外提升回来，不会再查数据库
+        MockDB.resetCalls();
+        for(String key : keys){
+            List<String> cities = cityCache.get(key);
+            System.out.println("load from cache again : " + cities);
+            Assert.assertEquals(MockDB.query(key), cities);
+        }
+        Assert.assertEquals(0, MockDB.calls());
+        System.out.println("size:" + cityCache.size() + ", offHeapBytes:" + cityCache.offHeapBytes() +
+                ", MockDB.getData calls:" + MockDB.calls());
+
+        //较大的值：10000个8KB的值，堆内只保留100个
+        LocalCache<Integer, List<String>> bigCache = LocalCache.newBuilder()
+                .maximumSize(100)
+                .offHeap(128L << 20, CITY_SERIALIZER)
+                .build();
+        String blob = "x".repeat(8 * 1024);
+        System.gc();
+        long heapBefore = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+        for(int i = 0;i < 10_000;i++){
+            bigCache.put(i, Collections.singletonList(blob + i));
+        }
+        System.gc();
+        long heapAfter = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+        String suffix = bigCache.getIfPresent(42).get(0).substring(8 * 1024);
+        System.out.println("10000 x 8KB values, heap grew " + (heapAfter - heapBefore) / 1024 + "KB, offHeapBytes:" +
+                bigCache.offHeapBytes() / 1024 + "KB, value 42 ends with:" + suffix);
+        Assert.assertEquals("42", suffix);
+    }
 }
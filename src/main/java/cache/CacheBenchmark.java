@@ -0,0 +1,120 @@
+package cache;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 命中路径吞吐量对比：LocalCache vs Guava LoadingCache
+ *  * 缓存容量足够放下所有key，预热后全部命中，测的是读路径本身（查表 + 记录访问）的并发性能
+ *  * key按Zipf分布（s=1）访问，少数热点key被所有线程争抢，模拟真实负载下的竞争
+ *  * 每个线程使用预生成的访问序列，避免在测量循环中生成随机数
+ * 运行：java cache.CacheBenchmark [线程数] [每轮秒数] [key数量]
+ * @author fuhaifei
+ * */
+public class CacheBenchmark {
+
+    static final int SEQUENCE_LENGTH = 1 << 20;
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int keys = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+        Integer[] sequence = zipfSequence(keys, SEQUENCE_LENGTH, 1.0, 42);
+
+        LocalCache<Integer, Integer> localCache = LocalCache.newBuilder()
+                .maximumSize(keys)
+                .build(key -> key);
+        LoadingCache<Integer, Integer> guavaCache = CacheBuilder.newBuilder()
+                .maximumSize(keys)
+                .build(new CacheLoader<Integer, Integer>() {
+                    @Override
+                    public Integer load(Integer key) {
+                        return key;
+                    }
+                });
+        for(int i = 0;i < keys;i++){
+            localCache.get(i);
+            guavaCache.getUnchecked(i);
+        }
+        System.out.println("threads=" + threads + ", keys=" + keys + ", zipf s=1.0");
+        //各跑两轮，第一轮作为JIT预热
+        for(int round = 0;round < 2;round++){
+            report("LocalCache", run(localCache::get, sequence, threads, seconds));
+            report("Guava", run(guavaCache::getUnchecked, sequence, threads, seconds));
+        }
+    }
+
+    static long run(Function<Integer, Integer> get, Integer[] sequence, int threads, int seconds)
+            throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        for(int t = 0;t < threads;t++){
+            int offset = t * (SEQUENCE_LENGTH / threads);
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                int mask = SEQUENCE_LENGTH - 1;
+                long count = 0;
+                int index = offset;
+                //每1024次检查一次时间，nanoTime本身不进入热循环
+                while(System.nanoTime() < deadline){
+                    for(int i = 0;i < 1024;i++){
+                        get.apply(sequence[index++ & mask]);
+                    }
+                    count += 1024;
+                }
+                ops.add(count);
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for(Thread worker : workers){
+            worker.join();
+        }
+        return ops.sum() / seconds;
+    }
+
+    static void report(String name, long opsPerSecond){
+        System.out.printf("%-12s %,15d ops/s%n", name, opsPerSecond);
+    }
+
+    //按Zipf(s)分布生成访问序列：key i被访问的概率正比于1/(i+1)^s
+    static Integer[] zipfSequence(int keys, int length, double s, long seed){
+        double[] cumulative = new double[keys];
+        double sum = 0;
+        for(int i = 0;i < keys;i++){
+            sum += 1.0 / Math.pow(i + 1, s);
+            cumulative[i] = sum;
+        }
+        Random random = new Random(seed);
+        Integer[] sequence = new Integer[length];
+        for(int i = 0;i < length;i++){
+            double u = random.nextDouble() * sum;
+            int low = 0;
+            int high = keys - 1;
+            while(low < high){
+                int mid = (low + high) >>> 1;
+                if(cumulative[mid] < u){
+                    low = mid + 1;
+                }else{
+                    high = mid;
+                }
+            }
+            //复用Integer缓存外的装箱对象，测量循环中不再装箱
+            sequence[i] = low;
+        }
+        return sequence;
+    }
+}
@@ -0,0 +1,23 @@
+package cache;
+
+/**
+ * 容量淘汰策略，决定缓存超过maximumSize时淘汰哪个节点
+ *  * 所有方法都在LocalCache的淘汰锁内调用，实现不需要考虑并发
+ *  * 节点通过LocalCache.Node中预留的prev/next/queue字段组织，策略自己维护链表，不额外分配对象
+ *  * onAccess来自有损的读缓冲，不保证每次命中都会通知
+ * @author fuhaifei
+ * */
+public interface EvictionPolicy<K, V> {
+
+    //新节点加入缓存
+    void onAdd(LocalCache.Node<K, V> node);
+
+    //节点被命中
+    void onAccess(LocalCache.Node<K, V> node);
+
+    //节点被移除（淘汰、过期、替换或者显式删除）
+    void onRemove(LocalCache.Node<K, V> node);
+
+    //缓存超过容量时选出下一个要淘汰的节点，没有节点时返回null；返回的节点随后会通过onRemove移除
+    LocalCache.Node<K, V> victim();
+}
@@ -0,0 +1,91 @@
+package cache;
+
+/**
+ * 访问频率的近似统计（Count-Min Sketch），TinyLFU的频率过滤器
+ *  * 每个计数器4bit（最大15），一个long放16个计数器；每个key映射到4个计数器，频率取最小值
+ *  * 表长为不小于maximumSize的2的幂次，每个key的内存开销不到一个long，远小于为每个key记一个精确计数
+ *  * 衰减：累计增加次数达到10 * maximumSize时所有计数器减半，旧的热点随时间冷却，适应访问模式的变化
+ * 只在LocalCache的淘汰锁内访问，非线程安全
+ * @author fuhaifei
+ * */
+final class FrequencySketch {
+
+    private static final long[] SEED = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    //减半时清除每个计数器移入的高位
+    private static final long RESET_MASK = 0x7777777777777777L;
+    //每个计数器的最低位，用于统计减半时被截断的奇数
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    FrequencySketch(long maximumSize){
+        int capacity = (int) Math.min(Math.max(maximumSize, 1), 1 << 30);
+        int length = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        table = new long[length];
+        tableMask = length - 1;
+        sampleSize = (int) Math.min(10L * capacity, Integer.MAX_VALUE);
+    }
+
+    //估计频率，0~15
+    int frequency(Object key){
+        int hash = spread(key.hashCode());
+        //同一个key的4个计数器在各自long中的位置由hash的低两位决定
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for(int i = 0;i < 4;i++){
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xFL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(Object key){
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for(int i = 0;i < 4;i++){
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if(added && ++size == sampleSize){
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter){
+        int offset = counter << 2;
+        long mask = 0xFL << offset;
+        if((table[index] & mask) != mask){
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    //所有计数器减半
+    private void reset(){
+        int odd = 0;
+        for(int i = 0;i < table.length;i++){
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size - (odd >>> 2)) >>> 1;
+    }
+
+    private int indexOf(int hash, int i){
+        long h = (hash + SEED[i]) * SEED[i];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    //hashCode质量参差不齐（如Integer），再混合一次
+    private static int spread(int x){
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
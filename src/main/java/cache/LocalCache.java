@@ -0,0 +1,1082 @@
+package cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * 本地并发缓存，功能对标Guava LoadingCache
+ *  * 存储：ConcurrentHashMap<K, Node>，命中路径只有一次无锁get
+ *  * 单飞加载（single-flight）：同一个key同时未命中时只有第一个线程调用Loader，其余线程等待同一个CompletableFuture，
+ *    N个并发请求只产生一次数据库访问，避免缓存击穿
+ *  * 批量加载：getAll把所有未命中且没有在加载中的key一次交给Loader.loadAll，已在加载中的key等待原来的加载；
+ *    batchLoads开启后，get的单key未命中也会在一个很短的窗口内攒成一批调用loadAll
+ *  * 容量淘汰：maximumSize + EvictionPolicy（默认LruPolicy，windowTinyLfu()切换为W-TinyLFU），超过容量时由策略选出淘汰节点
+ *  * 过期：expireAfterWrite按写入时间，expireAfterAccess按最后访问时间；读到过期节点视为未命中，
+ *    过期节点由维护任务按写入/访问顺序从队头批量清理
+ *  * 刷新：refreshAfterWrite到期的节点被读到时照常返回旧值，同时在executor中调用Loader.reload异步加载新值，
+ *    热点key不会在过期时刻集中阻塞在同步加载上；同一个key同时只有一个刷新任务，刷新失败保留旧值并按指数退避推迟下次刷新
+ *  * 堆外层：offHeap开启后，按容量淘汰的节点序列化后降级到直接内存（OffHeapTier），堆内未命中时先查堆外层，命中则提升回堆内；
+ *    maximumSize只限制堆内节点数，堆外层按字节数限制，满了之后按降级顺序淘汰
+ *  * 移除通知：RemovalListener在移除发生的线程中、锁外同步调用，附带RemovalCause
+ * 并发设计（参考Caffeine）：
+ *  * 淘汰策略和过期队列的链表只在evictionLock内修改
+ *  * 命中只记录到有损的ReadBuffer，不加锁；缓冲满时tryLock，拿到锁的线程批量重放，拿不到的直接返回
+ *  * 写入（put/加载/删除）直接加锁更新链表，并顺带执行一次维护（重放读缓冲、清理过期、淘汰超量）
+ *  * 节点的retired标记在从map中移除时设置，保证并发替换同一个key时旧节点不会在锁内被重新链入
+ * 使用方式：
+ *      LocalCache<String, List<String>> cache = LocalCache.newBuilder()
+ *              .maximumSize(1000)
+ *              .refreshAfterWrite(1, TimeUnit.SECONDS)
+ *              .expireAfterWrite(3, TimeUnit.SECONDS)
+ *              .build(MockDB::getData);
+ *      cache.get("CN");
+ * @author fuhaifei
+ * */
+public final class LocalCache<K, V> {
+    private static Logger logger = LoggerFactory.getLogger(LocalCache.class.getName());
+
+    //刷新失败的退避最多放大到refreshAfterWrite的64倍
+    private static final int MAX_REFRESH_BACKOFF_SHIFT = 6;
+
+    private final ConcurrentHashMap<K, Node<K, V>> data;
+    private final ConcurrentHashMap<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+    //正在刷新的key，保证同一个key同时只有一个刷新任务
+    private final ConcurrentHashMap<K, Boolean> refreshing = new ConcurrentHashMap<>();
+    private final Loader<? super K, V> loader;
+
+    private final long maximumSize;
+    private final EvictionPolicy<K, V> policy;
+    private final long expireAfterWriteNanos;
+    private final long expireAfterAccessNanos;
+    private final long refreshAfterWriteNanos;
+    private final Executor executor;
+    private final MicroBatcher<K> batcher;
+    private final OffHeapTier<K, V> offHeap;
+    private final OrderDeque<K, V> writeOrder;
+    private final OrderDeque<K, V> accessOrder;
+    private final ReadBuffer<Node<K, V>> readBuffer;
+    private final RemovalListener<? super K, ? super V> removalListener;
+    private final LongSupplier ticker;
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    //已链入淘汰策略的节点数，只在锁内修改
+    private long linkedCount;
+
+    private final boolean recordStats;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private LocalCache(Builder<K, V> builder, Loader<? super K, V> loader, EvictionPolicy<K, V> policy){
+        this.data = new ConcurrentHashMap<>(builder.initialCapacity);
+        this.loader = loader;
+        this.maximumSize = builder.maximumSize;
+        this.policy = policy;
+        this.expireAfterWriteNanos = builder.expireAfterWriteNanos;
+        this.expireAfterAccessNanos = builder.expireAfterAccessNanos;
+        this.refreshAfterWriteNanos = builder.refreshAfterWriteNanos;
+        this.executor = builder.executor;
+        this.batcher = builder.batchMaxDelayNanos > 0 ? new MicroBatcher<>(builder.batchMaxSize,
+                builder.batchMaxDelayNanos, executor, this::loadBatch) : null;
+        @SuppressWarnings("unchecked")
+        Serializer<V> serializer = (Serializer<V>) builder.serializer;
+        this.offHeap = builder.offHeapMaxBytes > 0 ? new OffHeapTier<>(builder.offHeapMaxBytes, serializer,
+                this::detach) : null;
+        this.writeOrder = expireAfterWriteNanos > 0 ? new OrderDeque<>(true) : null;
+        this.accessOrder = expireAfterAccessNanos > 0 ? new OrderDeque<>(false) : null;
+        this.readBuffer = policy != null || accessOrder != null ? new ReadBuffer<>() : null;
+        this.removalListener = builder.removalListener;
+        this.ticker = builder.ticker;
+        this.recordStats = builder.recordStats;
+    }
+
+    public static Builder<Object, Object> newBuilder(){
+        return new Builder<>();
+    }
+
+    // ---------------------------------------------------------------- 读
+
+    /**
+     * 命中直接返回；未命中时通过构建时传入的Loader加载，同一个key并发未命中只加载一次
+     * @throws LoadException Loader抛出异常或者返回null，等待同一次加载的所有线程都会收到
+     * */
+    public V get(K key){
+        if(loader == null){
+            throw new IllegalStateException("cache built without loader, use get(key, loader)");
+        }
+        return get(key, loader);
+    }
+
+    public V get(K key, Loader<? super K, V> loader){
+        V value = getIfPresent(key);
+        return value != null ? value : load(key, loader);
+    }
+
+    public V getIfPresent(K key){
+        Node<K, V> node = data.get(key);
+        if(node == null && offHeap != null){
+            node = promote(key);
+        }
+        if(node != null){
+            long now = expires() || refreshAfterWriteNanos > 0 ? ticker.getAsLong() : 0;
+            if(!isExpired(node, now)){
+                afterRead(node, now);
+                if(recordStats){
+                    hits.increment();
+                }
+                if(refreshAfterWriteNanos > 0 && now - node.refreshTime >= 0){
+                    scheduleRefresh(node);
+                }
+                return node.value;
+            }
+            //过期节点等维护任务清理，这里顺便尝试一次
+            tryMaintenance();
+        }
+        if(recordStats){
+            misses.increment();
+        }
+        return null;
+    }
+
+    //堆外命中：放回堆内，链入淘汰策略时可能把其他节点挤到堆外
+    private Node<K, V> promote(K key){
+        long now = ticker.getAsLong();
+        Node<K, V> node = offHeap.promote(key, promoted -> install(promoted, now),
+                (discarded, cause) -> notifyRemoval(discarded.key, discarded.value, cause));
+        if(node == null){
+            //并发put/加载可能已经写入了新值
+            return data.get(key);
+        }
+        afterWrite(node, null, now);
+        return node;
+    }
+
+    //在堆外层的锁内调用，与invalidate/put对堆外层的移除互斥，放弃时返回原因
+    private RemovalCause install(Node<K, V> node, long now){
+        if(isExpired(node, now)){
+            return RemovalCause.EXPIRED;
+        }
+        if(refreshAfterWriteNanos > 0){
+            node.refreshTime = node.writeTime + refreshAfterWriteNanos;
+        }
+        //并发put/加载已经写入了新值，堆外的旧值作废
+        return data.putIfAbsent(node.key, node) == null ? null : RemovalCause.REPLACED;
+    }
+
+    private void afterRead(Node<K, V> node, long now){
+        if(accessOrder != null){
+            node.accessTime = now;
+        }
+        //缓冲满时先尝试重放，腾出空间后再记录一次，单线程下不会丢失访问记录
+        if(readBuffer != null && readBuffer.offer(node) == ReadBuffer.FULL){
+            tryMaintenance();
+            readBuffer.offer(node);
+        }
+    }
+
+    /**
+     * 批量读取，返回的Map按keys的顺序排列，重复的key只出现一次
+     * 命中的直接返回；其他线程正在加载的key等待那次加载；剩下的key一次调用Loader.loadAll
+     * @throws LoadException 任何一个key加载失败或者loadAll的结果中缺少该key
+     * */
+    public Map<K, V> getAll(Iterable<? extends K> keys){
+        if(loader == null){
+            throw new IllegalStateException("cache built without loader");
+        }
+        //未命中的key先放null占位，保持返回顺序
+        Map<K, V> result = new LinkedHashMap<>();
+        Map<K, CompletableFuture<V>> claimed = new LinkedHashMap<>();
+        Map<K, CompletableFuture<V>> waiting = new LinkedHashMap<>();
+        for(K key : keys){
+            if(result.containsKey(key)){
+                continue;
+            }
+            V value = getIfPresent(key);
+            result.put(key, value);
+            if(value != null){
+                continue;
+            }
+            CompletableFuture<V> future = new CompletableFuture<>();
+            CompletableFuture<V> inFlight = loading.putIfAbsent(key, future);
+            if(inFlight == null){
+                claimed.put(key, future);
+                waiting.put(key, future);
+            }else{
+                waiting.put(key, inFlight);
+            }
+        }
+        //先完成自己占住的key再等待别人的，不会互相等待
+        if(!claimed.isEmpty()){
+            loadAll(claimed, loader);
+        }
+        for(Map.Entry<K, CompletableFuture<V>> entry : waiting.entrySet()){
+            result.put(entry.getKey(), await(entry.getKey(), entry.getValue()));
+        }
+        return result;
+    }
+
+    private V load(K key, Loader<? super K, V> loader){
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> inFlight = loading.putIfAbsent(key, future);
+        if(inFlight != null){
+            return await(key, inFlight);
+        }
+        //微批模式下由批次完成future并移出loading
+        if(batcher != null && loader == this.loader){
+            batcher.add(key);
+            return await(key, future);
+        }
+        try {
+            //可能在本线程未命中之后、占住加载位之前，其他线程刚好加载完成
+            Node<K, V> node = data.get(key);
+            V value;
+            if(node != null && !isExpired(node, expires() ? ticker.getAsLong() : 0)){
+                value = node.value;
+            }else{
+                long start = System.nanoTime();
+                try {
+                    value = loader.load(key);
+                } catch (Exception e) {
+                    throw new LoadException(key, e);
+                }
+                if(value == null){
+                    throw new LoadException(key, null);
+                }
+                if(recordStats){
+                    loads.increment();
+                }
+                logger.debug(Thread.currentThread().getName() + "loaded key:" + key + " in " +
+                        (System.nanoTime() - start) / 1000 + "us");
+                put(key, value);
+            }
+            future.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            if(recordStats){
+                loadFailures.increment();
+            }
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    //MicroBatcher攒出的一批key，每个key的加载位都由各自的get线程占住
+    private void loadBatch(List<K> keys){
+        Map<K, CompletableFuture<V>> claimed = new LinkedHashMap<>();
+        for(K key : keys){
+            claimed.put(key, loading.get(key));
+        }
+        loadAll(claimed, loader);
+    }
+
+    /**
+     * 一次loadAll加载所有已占住加载位的key，完成对应的future并移出loading
+     * loadAll结果中多出来的key不缓存，缺少的key按加载失败处理
+     * */
+    private void loadAll(Map<K, CompletableFuture<V>> claimed, Loader<? super K, V> loader){
+        try {
+            //可能在未命中之后、占住加载位之前，其他线程刚好加载完成
+            long now = expires() ? ticker.getAsLong() : 0;
+            List<K> missing = new ArrayList<>(claimed.size());
+            for(K key : claimed.keySet()){
+                Node<K, V> node = data.get(key);
+                if(node != null && !isExpired(node, now)){
+                    complete(key, claimed.get(key), node.value, null);
+                }else{
+                    missing.add(key);
+                }
+            }
+            if(missing.isEmpty()){
+                return;
+            }
+            long start = System.nanoTime();
+            Map<?, ? extends V> loaded;
+            try {
+                loaded = loader.loadAll(missing);
+            } catch (Exception e) {
+                for(K key : missing){
+                    fail(key, claimed.get(key), new LoadException(key, e));
+                }
+                return;
+            }
+            logger.debug(Thread.currentThread().getName() + "loaded " + missing.size() + " keys in " +
+                    (System.nanoTime() - start) / 1000 + "us");
+            for(K key : missing){
+                V value = loaded == null ? null : loaded.get(key);
+                if(value == null){
+                    fail(key, claimed.get(key), new LoadException(key, null));
+                    continue;
+                }
+                if(recordStats){
+                    loads.increment();
+                }
+                put(key, value);
+                complete(key, claimed.get(key), value, null);
+            }
+        } catch (RuntimeException | Error e) {
+            for(Map.Entry<K, CompletableFuture<V>> entry : claimed.entrySet()){
+                fail(entry.getKey(), entry.getValue(), e);
+            }
+            throw e;
+        }
+    }
+
+    private void fail(K key, CompletableFuture<V> future, Throwable error){
+        if(!future.isDone() && recordStats){
+            loadFailures.increment();
+        }
+        complete(key, future, null, error);
+    }
+
+    private void complete(K key, CompletableFuture<V> future, V value, Throwable error){
+        //先移出再完成，被唤醒的等待者再次未命中时可以发起新的加载
+        loading.remove(key, future);
+        if(error == null){
+            future.complete(value);
+        }else{
+            future.completeExceptionally(error);
+        }
+    }
+
+    //只有带Loader构建的缓存才会刷新，get(key, loader)传入的Loader不保存
+    private void scheduleRefresh(Node<K, V> node){
+        if(loader == null){
+            return;
+        }
+        //读者手里的节点可能刚被刷新、put或提升替换，再刷新一次只会多访问一次数据源，结果也会在replace时被丢弃
+        if(node.retired || data.get(node.key) != node){
+            return;
+        }
+        if(refreshing.putIfAbsent(node.key, Boolean.TRUE) != null){
+            return;
+        }
+        try {
+            executor.execute(() -> refresh(node));
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(node.key);
+            logger.error(Thread.currentThread().getName() + "refresh of key " + node.key + " rejected:" + e);
+        }
+    }
+
+    private void refresh(Node<K, V> node){
+        try {
+            V value = loader.reload(node.key, node.value);
+            if(value == null){
+                throw new LoadException(node.key, null);
+            }
+            if(recordStats){
+                loads.increment();
+            }
+            //刷新期间节点可能已被put替换、invalidate或过期淘汰，此时丢弃刷新结果
+            long now = ticker.getAsLong();
+            Node<K, V> refreshed = newNode(node.key, value, now);
+            if(data.replace(node.key, node, refreshed)){
+                afterWrite(refreshed, node, now);
+            }
+        } catch (Exception e) {
+            if(recordStats){
+                loadFailures.increment();
+            }
+            //保留旧值，下次刷新推迟refreshAfterWrite * 2^失败次数
+            int shift = Math.min(++node.refreshFailures, MAX_REFRESH_BACKOFF_SHIFT);
+            node.refreshTime = ticker.getAsLong() + (refreshAfterWriteNanos << shift);
+            logger.error(Thread.currentThread().getName() + "refresh of key " + node.key + " failed " +
+                    node.refreshFailures + " times:" + e);
+        } finally {
+            refreshing.remove(node.key);
+        }
+    }
+
+    private V await(K key, CompletableFuture<V> inFlight){
+        try {
+            return inFlight.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof Error error){
+                throw error;
+            }
+            //重新包装一次，保留当前线程的调用栈
+            throw new LoadException(key, cause instanceof LoadException le ? le.getCause() : cause);
+        }
+    }
+
+    // ---------------------------------------------------------------- 写
+
+    public void put(K key, V value){
+        if(key == null || value == null){
+            throw new NullPointerException("null key or value");
+        }
+        long now = ticker.getAsLong();
+        Node<K, V> node = newNode(key, value, now);
+        Node<K, V> old = data.put(key, node);
+        if(old == null && offHeap != null){
+            old = removeOffHeap(key, RemovalCause.REPLACED);
+        }
+        afterWrite(node, old, now);
+    }
+
+    private Node<K, V> newNode(K key, V value, long now){
+        Node<K, V> node = new Node<>(key, value, now);
+        if(refreshAfterWriteNanos > 0){
+            node.refreshTime = now + refreshAfterWriteNanos;
+        }
+        return node;
+    }
+
+    //新节点已放入map，old为被替换的节点
+    private void afterWrite(Node<K, V> node, Node<K, V> old, long now){
+        if(old != null){
+            old.retired = true;
+        }
+        List<Notification<K, V>> removed = new ArrayList<>(0);
+        evictionLock.lock();
+        try {
+            if(old != null){
+                unlink(old);
+            }
+            //锁外已被其他线程替换的节点不再链入
+            if(!node.retired && !node.linked){
+                link(node);
+            }
+            maintenance(now, removed);
+        } finally {
+            evictionLock.unlock();
+        }
+        if(old != null){
+            notifyRemoval(old.key, old.value, isExpired(old, now) ? RemovalCause.EXPIRED : RemovalCause.REPLACED);
+        }
+        notifyRemovals(removed);
+    }
+
+    public void invalidate(K key){
+        //先移出堆外层：正在提升的key在这里作废，之后不会再被放回map；
+        //反过来先移出map的话，提升可能恰好在两步之间把旧值放回map
+        if(offHeap != null){
+            Node<K, V> offHeapNode = removeOffHeap(key, RemovalCause.EXPLICIT);
+            if(offHeapNode != null){
+                notifyRemoval(key, offHeapNode.value, RemovalCause.EXPLICIT);
+            }
+        }
+        Node<K, V> node = data.remove(key);
+        if(node == null){
+            return;
+        }
+        node.retired = true;
+        evictionLock.lock();
+        try {
+            unlink(node);
+        } finally {
+            evictionLock.unlock();
+        }
+        notifyRemoval(node.key, node.value, RemovalCause.EXPLICIT);
+    }
+
+    public void invalidateAll(){
+        for(K key : data.keySet()){
+            invalidate(key);
+        }
+        if(offHeap != null){
+            for(K key : offHeap.keys()){
+                invalidate(key);
+            }
+        }
+    }
+
+    //近似大小，包括堆外层，可能包含已过期但还未清理的节点
+    public long size(){
+        return offHeap == null ? data.size() : data.size() + offHeap.size();
+    }
+
+    //堆外层占用的直接内存字节数，未开启堆外层时为0
+    public long offHeapBytes(){
+        return offHeap == null ? 0 : offHeap.usedBytes();
+    }
+
+    //立即执行一次维护：重放读缓冲、清理过期节点、淘汰超量节点
+    public void cleanUp(){
+        List<Notification<K, V>> removed = new ArrayList<>(0);
+        evictionLock.lock();
+        try {
+            maintenance(ticker.getAsLong(), removed);
+        } finally {
+            evictionLock.unlock();
+        }
+        notifyRemovals(removed);
+    }
+
+    // ---------------------------------------------------------------- 维护，锁内执行
+
+    private void tryMaintenance(){
+        if(!evictionLock.tryLock()){
+            return;
+        }
+        List<Notification<K, V>> removed = new ArrayList<>(0);
+        try {
+            maintenance(ticker.getAsLong(), removed);
+        } finally {
+            evictionLock.unlock();
+        }
+        notifyRemovals(removed);
+    }
+
+    private void maintenance(long now, List<Notification<K, V>> removed){
+        if(readBuffer != null){
+            readBuffer.drainTo(this::onAccess);
+        }
+        expireEntries(now, removed);
+        evictEntries(removed);
+    }
+
+    private void onAccess(Node<K, V> node){
+        if(!node.linked){
+            return;
+        }
+        if(policy != null){
+            policy.onAccess(node);
+        }
+        if(accessOrder != null){
+            accessOrder.moveToLast(node);
+        }
+    }
+
+    private void expireEntries(long now, List<Notification<K, V>> removed){
+        Node<K, V> node;
+        //替换会生成新节点，同一节点的写入时间不变，写入顺序队列按写入时间有序
+        while(writeOrder != null && (node = writeOrder.peekFirst()) != null
+                && now - node.writeTime >= expireAfterWriteNanos){
+            removeNode(node, RemovalCause.EXPIRED, removed);
+        }
+        //访问顺序由读缓冲重放维护，是近似有序的，队头没过期就停止
+        while(accessOrder != null && (node = accessOrder.peekFirst()) != null
+                && now - node.accessTime >= expireAfterAccessNanos){
+            removeNode(node, RemovalCause.EXPIRED, removed);
+        }
+    }
+
+    private void evictEntries(List<Notification<K, V>> removed){
+        if(policy == null){
+            return;
+        }
+        Node<K, V> victim;
+        while(linkedCount > maximumSize && (victim = policy.victim()) != null){
+            removeNode(victim, RemovalCause.SIZE, removed);
+            //降级到堆外不算淘汰，堆外层自己统计
+            if(recordStats && offHeap == null){
+                evictions.increment();
+            }
+        }
+    }
+
+    private void removeNode(Node<K, V> node, RemovalCause cause, List<Notification<K, V>> removed){
+        if(cause == RemovalCause.SIZE && offHeap != null){
+            //降级的节点锁外写入堆外层之后才从map移除，写入期间仍然可以命中，见demote
+            if(data.get(node.key) == node){
+                removed.add(new Notification<>(node, cause));
+            }
+        }else if(data.remove(node.key, node)){
+            //map中已经是新节点时不能误删，旧节点只需要从链表中摘除
+            node.retired = true;
+            if(removalListener != null){
+                removed.add(new Notification<>(node, cause));
+            }
+        }
+        unlink(node);
+    }
+
+    // ---------------------------------------------------------------- 堆外层
+
+    //淘汰锁外执行，序列化不阻塞其他写入
+    private void demote(Node<K, V> node){
+        if(data.get(node.key) != node){
+            return;
+        }
+        List<Node<K, V>> evicted = null;
+        try {
+            evicted = offHeap.demote(node, removalListener != null);
+        } catch (RuntimeException e) {
+            logger.error(Thread.currentThread().getName() + "demote key " + node.key + " failed:" + e);
+        } finally {
+            //降级失败（包括Error）直接淘汰，已经不在链表中的节点不能一直留在map里
+            if(evicted == null && detach(node)){
+                notifyRemoval(node.key, node.value, RemovalCause.SIZE);
+            }
+        }
+        if(evicted == null){
+            return;
+        }
+        for(Node<K, V> e : evicted){
+            notifyRemoval(e.key, e.value, RemovalCause.SIZE);
+        }
+    }
+
+    //降级写入堆外层后在OffHeapTier的锁内调用，节点已被put替换或invalidate时返回false
+    private boolean detach(Node<K, V> node){
+        if(data.remove(node.key, node)){
+            node.retired = true;
+            return true;
+        }
+        return false;
+    }
+
+    //堆外层中的旧节点，没有RemovalListener时不需要读出值；key正在提升时让提升放弃，由提升的线程按cause通知
+    private Node<K, V> removeOffHeap(K key, RemovalCause cause){
+        if(removalListener != null){
+            return offHeap.remove(key, cause);
+        }
+        offHeap.invalidate(key, cause);
+        return null;
+    }
+
+    private void link(Node<K, V> node){
+        node.linked = true;
+        linkedCount++;
+        if(policy != null){
+            policy.onAdd(node);
+        }
+        if(writeOrder != null){
+            writeOrder.linkLast(node);
+        }
+        if(accessOrder != null){
+            accessOrder.linkLast(node);
+        }
+    }
+
+    private void unlink(Node<K, V> node){
+        if(!node.linked){
+            return;
+        }
+        node.linked = false;
+        linkedCount--;
+        if(policy != null){
+            policy.onRemove(node);
+        }
+        if(writeOrder != null){
+            writeOrder.unlink(node);
+        }
+        if(accessOrder != null){
+            accessOrder.unlink(node);
+        }
+    }
+
+    // ---------------------------------------------------------------- 过期与通知
+
+    private boolean expires(){
+        return expireAfterWriteNanos > 0 || expireAfterAccessNanos > 0;
+    }
+
+    private boolean isExpired(Node<K, V> node, long now){
+        return expireAfterWriteNanos > 0 && now - node.writeTime >= expireAfterWriteNanos
+                || expireAfterAccessNanos > 0 && now - node.accessTime >= expireAfterAccessNanos;
+    }
+
+    private void notifyRemovals(List<Notification<K, V>> removed){
+        for(Notification<K, V> notification : removed){
+            if(notification.cause == RemovalCause.SIZE && offHeap != null){
+                demote(notification.node);
+            }else{
+                notifyRemoval(notification.node.key, notification.node.value, notification.cause);
+            }
+        }
+    }
+
+    private void notifyRemoval(K key, V value, RemovalCause cause){
+        if(removalListener == null){
+            return;
+        }
+        try {
+            removalListener.onRemoval(key, value, cause);
+        } catch (RuntimeException e) {
+            logger.error(Thread.currentThread().getName() + "removal listener failed:" + e);
+        }
+    }
+
+    public Stats stats(){
+        long evicted = evictions.sum() + (recordStats && offHeap != null ? offHeap.evictionCount() : 0);
+        return new Stats(hits.sum(), misses.sum(), loads.sum(), loadFailures.sum(), evicted);
+    }
+
+    // ---------------------------------------------------------------- 类型定义
+
+    /**
+     * 缓存节点，key对应的值被替换时生成新节点而不是原地修改
+     * 链表字段只在淘汰锁内访问：prev/next/queue留给EvictionPolicy，writePrev/writeNext、accessPrev/accessNext为过期队列
+     * */
+    public static final class Node<K, V> {
+        final K key;
+        final V value;
+        final long writeTime;
+        volatile long accessTime;
+        //已从map中移除
+        volatile boolean retired;
+        //到达该时间后读到此节点会触发刷新，刷新失败时向后推迟
+        volatile long refreshTime;
+        //连续刷新失败次数，只在该key唯一的刷新任务中修改
+        int refreshFailures;
+
+        boolean linked;
+        Node<K, V> prev;
+        Node<K, V> next;
+        int queue;
+        Node<K, V> writePrev;
+        Node<K, V> writeNext;
+        Node<K, V> accessPrev;
+        Node<K, V> accessNext;
+
+        Node(K key, V value, long now){
+            this.key = key;
+            this.value = value;
+            this.writeTime = now;
+            this.accessTime = now;
+        }
+
+        public K key(){
+            return key;
+        }
+
+        public V value(){
+            return value;
+        }
+    }
+
+    //按写入或访问顺序串起节点的侵入式双向链表
+    private static final class OrderDeque<K, V> {
+        private final boolean writeOrder;
+        private Node<K, V> head;
+        private Node<K, V> tail;
+
+        OrderDeque(boolean writeOrder){
+            this.writeOrder = writeOrder;
+        }
+
+        Node<K, V> peekFirst(){
+            return head;
+        }
+
+        void linkLast(Node<K, V> node){
+            setPrev(node, tail);
+            setNext(node, null);
+            if(tail == null){
+                head = node;
+            }else{
+                setNext(tail, node);
+            }
+            tail = node;
+        }
+
+        void moveToLast(Node<K, V> node){
+            if(node != tail){
+                unlink(node);
+                linkLast(node);
+            }
+        }
+
+        void unlink(Node<K, V> node){
+            Node<K, V> prev = prev(node);
+            Node<K, V> next = next(node);
+            if(prev == null){
+                head = next;
+            }else{
+                setNext(prev, next);
+            }
+            if(next == null){
+                tail = prev;
+            }else{
+                setPrev(next, prev);
+            }
+            setPrev(node, null);
+            setNext(node, null);
+        }
+
+        private Node<K, V> prev(Node<K, V> node){
+            return writeOrder ? node.writePrev : node.accessPrev;
+        }
+
+        private Node<K, V> next(Node<K, V> node){
+            return writeOrder ? node.writeNext : node.accessNext;
+        }
+
+        private void setPrev(Node<K, V> node, Node<K, V> prev){
+            if(writeOrder){
+                node.writePrev = prev;
+            }else{
+                node.accessPrev = prev;
+            }
+        }
+
+        private void setNext(Node<K, V> node, Node<K, V> next){
+            if(writeOrder){
+                node.writeNext = next;
+            }else{
+                node.accessNext = next;
+            }
+        }
+    }
+
+    /**
+     * 加载逻辑，对应Guava的CacheLoader
+     * 不能在load中再次get同一个key，单飞加载下会等待自己而死锁
+     * */
+    @FunctionalInterface
+    public interface Loader<K, V> {
+        V load(K key) throws Exception;
+
+        /**
+         * refreshAfterWrite到期时在executor中调用，默认重新load
+         * 可以利用旧值做增量加载，或者判断数据未变化时直接返回oldValue；抛出异常时保留旧值
+         * */
+        default V reload(K key, V oldValue) throws Exception {
+            return load(key);
+        }
+
+        /**
+         * getAll和batchLoads模式下调用，默认逐个load
+         * 支持批量查询的数据源应该覆盖这个方法，把N次往返合并为一次；返回结果中缺少的key视为加载失败
+         * */
+        default Map<K, V> loadAll(Collection<? extends K> keys) throws Exception {
+            Map<K, V> result = new HashMap<>();
+            for(K key : keys){
+                V value = load(key);
+                if(value != null){
+                    result.put(key, value);
+                }
+            }
+            return result;
+        }
+    }
+
+    @FunctionalInterface
+    public interface RemovalListener<K, V> {
+        void onRemoval(K key, V value, RemovalCause cause);
+    }
+
+    public enum RemovalCause {
+        //invalidate/invalidateAll
+        EXPLICIT,
+        //put覆盖了旧值
+        REPLACED,
+        //expireAfterWrite/expireAfterAccess到期
+        EXPIRED,
+        //超过maximumSize被淘汰
+        SIZE
+    }
+
+    private static final class Notification<K, V> {
+        final Node<K, V> node;
+        final RemovalCause cause;
+
+        Notification(Node<K, V> node, RemovalCause cause){
+            this.node = node;
+            this.cause = cause;
+        }
+    }
+
+    //Loader失败或者返回null
+    public static class LoadException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public LoadException(Object key, Throwable cause){
+            super(cause == null ? "loader returned null for key " + key : "load key " + key + " failed", cause);
+        }
+    }
+
+    public static class Stats {
+        public final long hits;
+        public final long misses;
+        public final long loads;
+        public final long loadFailures;
+        public final long evictions;
+
+        Stats(long hits, long misses, long loads, long loadFailures, long evictions){
+            this.hits = hits;
+            this.misses = misses;
+            this.loads = loads;
+            this.loadFailures = loadFailures;
+            this.evictions = evictions;
+        }
+
+        public double hitRate(){
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + ", misses=" + misses + ", loads=" + loads + ", loadFailures=" + loadFailures +
+                    ", evictions=" + evictions + ", hitRate=" + String.format("%.4f", hitRate());
+        }
+    }
+
+    /**
+     * 构建器，对应Guava的CacheBuilder
+     *  * 未设置maximumSize时不做容量淘汰，未设置过期时间时不过期
+     *  * recordStats()开启后才统计命中率，命中路径上少一次LongAdder累加
+     * */
+    public static final class Builder<K, V> {
+        private int initialCapacity = 16;
+        private long maximumSize = -1;
+        private long expireAfterWriteNanos;
+        private long expireAfterAccessNanos;
+        private long refreshAfterWriteNanos;
+        private Executor executor = ForkJoinPool.commonPool();
+        private int batchMaxSize;
+        private long batchMaxDelayNanos;
+        private long offHeapMaxBytes;
+        private Serializer<?> serializer;
+        private RemovalListener<? super K, ? super V> removalListener;
+        private LongSupplier ticker = System::nanoTime;
+        private boolean recordStats;
+        private boolean windowTinyLfu;
+
+        private Builder(){
+        }
+
+        public Builder<K, V> initialCapacity(int initialCapacity){
+            this.initialCapacity = initialCapacity;
+            return this;
+        }
+
+        public Builder<K, V> maximumSize(long maximumSize){
+            if(maximumSize < 0){
+                throw new IllegalArgumentException("maximumSize must not be negative: " + maximumSize);
+            }
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        public Builder<K, V> expireAfterWrite(long duration, TimeUnit unit){
+            this.expireAfterWriteNanos = positiveNanos(duration, unit);
+            return this;
+        }
+
+        public Builder<K, V> expireAfterAccess(long duration, TimeUnit unit){
+            this.expireAfterAccessNanos = positiveNanos(duration, unit);
+            return this;
+        }
+
+        /**
+         * 写入超过duration后，下一次读取返回旧值并触发异步刷新；需要通过build(loader)构建
+         * 通常与更长的expireAfterWrite一起使用：常被读取的key一直由刷新保持新鲜，长期不读的key仍然会过期
+         * */
+        public Builder<K, V> refreshAfterWrite(long duration, TimeUnit unit){
+            this.refreshAfterWriteNanos = positiveNanos(duration, unit);
+            return this;
+        }
+
+        /**
+         * 微批加载：get(key)未命中时不立即调用load，最多等待maxDelay把同一时间段的未命中攒成一批调用Loader.loadAll，
+         * 攒满maxBatchSize立即发出；用单次未命中多出最多maxDelay的延迟换取数据源的往返次数，maxDelay一般取几百微秒
+         * 需要通过build(loader)构建，Loader应覆盖loadAll
+         * */
+        public Builder<K, V> batchLoads(int maxBatchSize, long maxDelay, TimeUnit unit){
+            if(maxBatchSize <= 0){
+                throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+            }
+            this.batchMaxSize = maxBatchSize;
+            this.batchMaxDelayNanos = positiveNanos(maxDelay, unit);
+            return this;
+        }
+
+        /**
+         * 开启堆外层：超过maximumSize的节点不直接淘汰，而是用serializer序列化后放入最多maxBytes的直接内存，
+         * 命中时再反序列化放回堆内；需要同时设置maximumSize，直接内存受-XX:MaxDirectMemorySize限制
+         * */
+        @SuppressWarnings("unchecked")
+        public <K1 extends K, V1 extends V> Builder<K1, V1> offHeap(long maxBytes, Serializer<V1> serializer){
+            if(maxBytes <= 0){
+                throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+            }
+            if(serializer == null){
+                throw new NullPointerException("serializer");
+            }
+            Builder<K1, V1> self = (Builder<K1, V1>) this;
+            self.offHeapMaxBytes = maxBytes;
+            self.serializer = serializer;
+            return self;
+        }
+
+        //执行异步刷新和微批加载的线程池，默认ForkJoinPool.commonPool()
+        public Builder<K, V> executor(Executor executor){
+            if(executor == null){
+                throw new NullPointerException("executor");
+            }
+            this.executor = executor;
+            return this;
+        }
+
+        @SuppressWarnings("unchecked")
+        public <K1 extends K, V1 extends V> Builder<K1, V1> removalListener(RemovalListener<? super K1, ? super V1> listener){
+            Builder<K1, V1> self = (Builder<K1, V1>) this;
+            self.removalListener = listener;
+            return self;
+        }
+
+        //时间源（纳秒），测试中可以替换为手动推进的时钟
+        public Builder<K, V> ticker(LongSupplier ticker){
+            this.ticker = ticker;
+            return this;
+        }
+
+        public Builder<K, V> recordStats(){
+            this.recordStats = true;
+            return this;
+        }
+
+        //容量淘汰使用W-TinyLFU代替LRU，访问中扫描较多时命中率更高，需要同时设置maximumSize
+        public Builder<K, V> windowTinyLfu(){
+            this.windowTinyLfu = true;
+            return this;
+        }
+
+        @SuppressWarnings("unchecked")
+        public <K1 extends K, V1 extends V> LocalCache<K1, V1> build(Loader<? super K1, V1> loader){
+            return new LocalCache<>((Builder<K1, V1>) this, loader, newPolicy());
+        }
+
+        //不带Loader，只能通过get(key, loader)/put使用
+        @SuppressWarnings("unchecked")
+        public <K1 extends K, V1 extends V> LocalCache<K1, V1> build(){
+            if(refreshAfterWriteNanos > 0 || batchMaxDelayNanos > 0){
+                throw new IllegalStateException("refreshAfterWrite and batchLoads require build(loader)");
+            }
+            return new LocalCache<>((Builder<K1, V1>) this, null, newPolicy());
+        }
+
+        private <K1, V1> EvictionPolicy<K1, V1> newPolicy(){
+            if(offHeapMaxBytes > 0 && maximumSize < 0){
+                throw new IllegalStateException("offHeap requires maximumSize");
+            }
+            if(maximumSize < 0){
+                return null;
+            }
+            return windowTinyLfu ? new WindowTinyLfuPolicy<>(maximumSize) : new LruPolicy<>();
+        }
+
+        private static long positiveNanos(long duration, TimeUnit unit){
+            if(duration <= 0){
+                throw new IllegalArgumentException("duration must be positive: " + duration);
+            }
+            return unit.toNanos(duration);
+        }
+    }
+}
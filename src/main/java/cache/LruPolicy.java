@@ -0,0 +1,32 @@
+package cache;
+
+/**
+ * LRU淘汰：双向链表，头部最久未访问，尾部最近访问
+ * 命中时移动到尾部，淘汰头部
+ * 实现简单，但一次大范围扫描（每个key只访问一次）就会把热点数据全部挤出去，扫描较多的场景使用WindowTinyLfuPolicy
+ * @author fuhaifei
+ * */
+public final class LruPolicy<K, V> implements EvictionPolicy<K, V> {
+
+    private final NodeDeque<K, V> deque = new NodeDeque<>();
+
+    @Override
+    public void onAdd(LocalCache.Node<K, V> node) {
+        deque.linkLast(node);
+    }
+
+    @Override
+    public void onAccess(LocalCache.Node<K, V> node) {
+        deque.moveToLast(node);
+    }
+
+    @Override
+    public void onRemove(LocalCache.Node<K, V> node) {
+        deque.unlink(node);
+    }
+
+    @Override
+    public LocalCache.Node<K, V> victim() {
+        return deque.peekFirst();
+    }
+}
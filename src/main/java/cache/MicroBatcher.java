@@ -0,0 +1,85 @@
+package cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 微批：把短时间内陆续到达的单个key攒成一批，一次交给dispatcher处理
+ *  * 批次中第一个key到达时启动定时器，maxDelay后发出；攒满maxBatchSize立即发出，不等定时器
+ *  * dispatcher在executor中执行，定时线程只负责切分批次，不会被慢查询阻塞
+ *  * 提前发出的批次对应的定时器不取消，到期时只会把下一批提前发出，不影响正确性
+ * 由LocalCache在batchLoads模式下使用：get未命中的线程占住单飞加载位后把key交给这里，再等待自己的future
+ * @author fuhaifei
+ * */
+final class MicroBatcher<K> {
+    private static Logger logger = LoggerFactory.getLogger(MicroBatcher.class.getName());
+
+    //所有缓存共用一个定时线程，守护线程不阻止JVM退出
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cache-micro-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final Executor executor;
+    private final Consumer<List<K>> dispatcher;
+    private List<K> pending = new ArrayList<>();
+
+    MicroBatcher(int maxBatchSize, long maxDelayNanos, Executor executor, Consumer<List<K>> dispatcher){
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = maxDelayNanos;
+        this.executor = executor;
+        this.dispatcher = dispatcher;
+    }
+
+    void add(K key){
+        List<K> full = null;
+        boolean first;
+        synchronized (this) {
+            pending.add(key);
+            first = pending.size() == 1;
+            if(pending.size() >= maxBatchSize){
+                full = pending;
+                pending = new ArrayList<>();
+            }
+        }
+        if(full != null){
+            dispatch(full);
+        }else if(first){
+            TIMER.schedule(this::flush, maxDelayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void flush(){
+        List<K> batch;
+        synchronized (this) {
+            if(pending.isEmpty()){
+                return;
+            }
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+        dispatch(batch);
+    }
+
+    private void dispatch(List<K> batch){
+        try {
+            executor.execute(() -> dispatcher.accept(batch));
+        } catch (RejectedExecutionException e) {
+            //线程池拒绝时就地执行，批次中的等待者不能没有结果
+            logger.error(Thread.currentThread().getName() + "batch of " + batch.size() + " rejected, run inline:" + e);
+            dispatcher.accept(batch);
+        }
+    }
+}
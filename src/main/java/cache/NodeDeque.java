@@ -0,0 +1,61 @@
+package cache;
+
+/**
+ * 通过LocalCache.Node的prev/next串起节点的双向链表，供淘汰策略使用
+ * 一个节点同一时刻只能在一个NodeDeque中，头部为最早加入/最久未访问
+ * @author fuhaifei
+ * */
+final class NodeDeque<K, V> {
+
+    private LocalCache.Node<K, V> head;
+    private LocalCache.Node<K, V> tail;
+    private long size;
+
+    LocalCache.Node<K, V> peekFirst(){
+        return head;
+    }
+
+    LocalCache.Node<K, V> peekLast(){
+        return tail;
+    }
+
+    long size(){
+        return size;
+    }
+
+    void linkLast(LocalCache.Node<K, V> node){
+        node.prev = tail;
+        node.next = null;
+        if(tail == null){
+            head = node;
+        }else{
+            tail.next = node;
+        }
+        tail = node;
+        size++;
+    }
+
+    void moveToLast(LocalCache.Node<K, V> node){
+        if(node != tail){
+            unlink(node);
+            linkLast(node);
+        }
+    }
+
+    void unlink(LocalCache.Node<K, V> node){
+        LocalCache.Node<K, V> prev = node.prev;
+        LocalCache.Node<K, V> next = node.next;
+        if(prev == null){
+            head = next;
+        }else{
+            prev.next = next;
+        }
+        if(next == null){
+            tail = prev;
+        }else{
+            next.prev = prev;
+        }
+        node.prev = node.next = null;
+        size--;
+    }
+}
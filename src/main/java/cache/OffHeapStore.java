@@ -0,0 +1,168 @@
+package cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 直接内存上的块分配器，堆外层存放序列化后的值
+ *  * 内存按slab向操作系统申请（ByteBuffer.allocateDirect），用到时才申请，总量不超过maxBytes，申请后不再归还
+ *  * 直接内存不足（超过-XX:MaxDirectMemorySize）时按空间已满处理，之后不再申请新的slab，只复用已有的块
+ *  * slab切成等长的块，每块开头4字节是下一块的编号；一条记录占用一串块，只需要记住第一块的编号和长度
+ *  * 空闲块也通过块头串成链表，空闲链表本身不占堆内存
+ *  * 与按大小分级的slab相比，任何记录释放的块都能给任何大小的记录复用，不会出现某一级内存耗尽而其他级空闲的情况，
+ *    代价是每条记录最多浪费一块的尾部，以及读写时沿块链拷贝
+ * 非线程安全，由OffHeapTier加锁访问
+ * @author fuhaifei
+ * */
+final class OffHeapStore {
+
+    static final int NIL = -1;
+    private static final int HEADER = 4;
+
+    private final int blockSize;
+    private final int blocksPerSlab;
+    private final int slabSize;
+    private final ByteBuffer[] slabs;
+    private int slabCount;
+    //允许申请的slab数，申请直接内存失败后降为已申请的数量
+    private int slabLimit;
+    private int freeHead = NIL;
+    private long freeBlocks;
+
+    OffHeapStore(long maxBytes, int blockSize, int slabSize){
+        if(blockSize <= HEADER || slabSize < blockSize){
+            throw new IllegalArgumentException("blockSize " + blockSize + " slabSize " + slabSize);
+        }
+        this.blockSize = blockSize;
+        this.blocksPerSlab = slabSize / blockSize;
+        this.slabSize = blocksPerSlab * blockSize;
+        long maxSlabs = Math.max(1, maxBytes / this.slabSize);
+        //块编号是int
+        if(maxSlabs * blocksPerSlab > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("maxBytes too large for blockSize " + blockSize + ": " + maxBytes);
+        }
+        this.slabs = new ByteBuffer[(int) maxSlabs];
+        this.slabLimit = slabs.length;
+    }
+
+    //length字节的记录需要的块数
+    int blocksFor(int length){
+        int payload = blockSize - HEADER;
+        return Math.max(1, (length + payload - 1) / payload);
+    }
+
+    //全部内存都空闲时能否放下
+    boolean fits(int length){
+        return blocksFor(length) <= (long) slabLimit * blocksPerSlab;
+    }
+
+    //返回第一块的编号，空间不足时返回NIL
+    int allocate(int length){
+        int blocks = blocksFor(length);
+        while(freeBlocks < blocks && slabCount < slabLimit){
+            if(!addSlab()){
+                break;
+            }
+        }
+        if(freeBlocks < blocks){
+            return NIL;
+        }
+        int first = freeHead;
+        int last = first;
+        for(int i = 1;i < blocks;i++){
+            last = next(last);
+        }
+        freeHead = next(last);
+        setNext(last, NIL);
+        freeBlocks -= blocks;
+        return first;
+    }
+
+    void free(int first, int length){
+        int blocks = blocksFor(length);
+        int last = first;
+        for(int i = 1;i < blocks;i++){
+            last = next(last);
+        }
+        setNext(last, freeHead);
+        freeHead = first;
+        freeBlocks += blocks;
+    }
+
+    //依次写入parts的全部剩余内容，总长度不能超过allocate时的length
+    void write(int first, ByteBuffer... parts){
+        int block = first;
+        int offset = HEADER;
+        for(ByteBuffer part : parts){
+            while(part.hasRemaining()){
+                if(offset == blockSize){
+                    block = next(block);
+                    offset = HEADER;
+                }
+                int length = Math.min(part.remaining(), blockSize - offset);
+                slab(block).put(position(block) + offset, part, part.position(), length);
+                part.position(part.position() + length);
+                offset += length;
+            }
+        }
+    }
+
+    //拷贝到堆内的ByteBuffer，处于读模式
+    ByteBuffer read(int first, int length){
+        byte[] bytes = new byte[length];
+        int block = first;
+        int copied = 0;
+        while(copied < length){
+            int chunk = Math.min(length - copied, blockSize - HEADER);
+            slab(block).get(position(block) + HEADER, bytes, copied, chunk);
+            copied += chunk;
+            if(copied < length){
+                block = next(block);
+            }
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    //已申请的直接内存
+    long reservedBytes(){
+        return (long) slabCount * slabSize;
+    }
+
+    long usedBytes(){
+        return ((long) slabCount * blocksPerSlab - freeBlocks) * blockSize;
+    }
+
+    //新slab的所有块按顺序接到空闲链表头部，直接内存不足时返回false
+    private boolean addSlab(){
+        ByteBuffer slab;
+        try {
+            slab = ByteBuffer.allocateDirect(slabSize);
+        } catch (OutOfMemoryError e) {
+            slabLimit = slabCount;
+            return false;
+        }
+        int base = slabCount * blocksPerSlab;
+        slabs[slabCount++] = slab;
+        for(int i = blocksPerSlab - 1;i >= 0;i--){
+            setNext(base + i, freeHead);
+            freeHead = base + i;
+        }
+        freeBlocks += blocksPerSlab;
+        return true;
+    }
+
+    private ByteBuffer slab(int block){
+        return slabs[block / blocksPerSlab];
+    }
+
+    private int position(int block){
+        return (block % blocksPerSlab) * blockSize;
+    }
+
+    private int next(int block){
+        return slab(block).getInt(position(block));
+    }
+
+    private void setNext(int block, int next){
+        slab(block).putInt(position(block), next);
+    }
+}
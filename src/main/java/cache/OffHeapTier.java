@@ -0,0 +1,276 @@
+package cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * LocalCache的堆外层：从堆内按容量淘汰的节点降级到这里，命中时提升回堆内
+ *  * 值序列化后存放在OffHeapStore的直接内存中，不计入堆大小，GC时也不需要扫描
+ *  * 堆内索引只有key -> long（第一块编号 << 32 | 记录长度），值多大都不影响索引的大小
+ *  * 记录格式：writeTime(8) + accessTime(8) + 序列化后的值，提升回堆内后过期时间保持不变
+ *  * 按降级顺序淘汰（FIFO）：降级的本来就是堆内最久未访问的节点，命中的节点会被提升移出，留下的顺序近似LRU
+ *  * 序列化/反序列化在锁外，锁内只有块的分配、释放和拷贝
+ *  * 降级的节点写入堆外之前一直留在堆内的map中，写入后在锁内通过detach从map移除；
+ *    期间被put替换或invalidate时detach失败，撤销这次写入，旧值不会在堆外复活
+ *  * 提升反过来：记录移出后key登记为正在提升，锁外反序列化，再在锁内放回堆内的map；
+ *    期间被put替换或invalidate时记下原因，放弃放回，旧值不会在堆内复活
+ * @author fuhaifei
+ * */
+final class OffHeapTier<K, V> {
+
+    private static final int RECORD_HEADER = 16;
+    static final int DEFAULT_BLOCK_SIZE = 256;
+    static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+    private final OffHeapStore store;
+    private final Serializer<V> serializer;
+    //把降级的节点从堆内map移除，节点已被替换或删除时返回false
+    private final Predicate<LocalCache.Node<K, V>> detach;
+    private final LinkedHashMap<K, Long> index = new LinkedHashMap<>();
+    //已从index移出、正在锁外反序列化的key，以及其中被put替换或invalidate的key和原因
+    private final Set<K> promoting = new HashSet<>();
+    private final Map<K, LocalCache.RemovalCause> cancelled = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private long evictionCount;
+
+    OffHeapTier(long maxBytes, Serializer<V> serializer, Predicate<LocalCache.Node<K, V>> detach){
+        this.store = new OffHeapStore(maxBytes, DEFAULT_BLOCK_SIZE,
+                (int) Math.min(DEFAULT_SLAB_SIZE, Math.max(DEFAULT_BLOCK_SIZE, maxBytes)));
+        this.serializer = serializer;
+        this.detach = detach;
+    }
+
+    /**
+     * 降级一个堆内节点
+     * @param readEvicted 是否需要被挤出堆外层的节点的值（有RemovalListener时）
+     * @return readEvicted为true时返回被挤出堆外层的节点；放不下时（值比整个堆外层还大）包含直接淘汰的node本身
+     * */
+    List<LocalCache.Node<K, V>> demote(LocalCache.Node<K, V> node, boolean readEvicted){
+        byte[] value = serializer.serialize(node.value);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        header.putLong(node.writeTime).putLong(node.accessTime).flip();
+        int length = RECORD_HEADER + value.length;
+        List<K> evictedKeys = new ArrayList<>(0);
+        List<ByteBuffer> evictedRecords = new ArrayList<>(0);
+        boolean dropped = false;
+        lock.lock();
+        try {
+            Long old = index.remove(node.key);
+            if(old != null){
+                store.free(first(old), length(old));
+            }
+            //放不下时不能为它清空整个堆外层
+            int first = store.fits(length) ? store.allocate(length) : OffHeapStore.NIL;
+            Iterator<Map.Entry<K, Long>> eldest = index.entrySet().iterator();
+            while(first == OffHeapStore.NIL && store.fits(length) && eldest.hasNext()){
+                Map.Entry<K, Long> entry = eldest.next();
+                eldest.remove();
+                if(readEvicted){
+                    evictedKeys.add(entry.getKey());
+                    evictedRecords.add(store.read(first(entry.getValue()), length(entry.getValue())));
+                }
+                store.free(first(entry.getValue()), length(entry.getValue()));
+                evictionCount++;
+                first = store.allocate(length);
+            }
+            if(first == OffHeapStore.NIL){
+                if(detach.test(node)){
+                    evictionCount++;
+                    dropped = true;
+                }
+            }else{
+                store.write(first, header, ByteBuffer.wrap(value));
+                if(detach.test(node)){
+                    index.put(node.key, address(first, length));
+                }else{
+                    store.free(first, length);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        List<LocalCache.Node<K, V>> evicted = new ArrayList<>(evictedKeys.size() + 1);
+        for(int i = 0;i < evictedKeys.size();i++){
+            evicted.add(toNode(evictedKeys.get(i), evictedRecords.get(i)));
+        }
+        if(dropped && readEvicted){
+            evicted.add(node);
+        }
+        return evicted;
+    }
+
+    /**
+     * 提升一个节点回堆内
+     * @param install 锁内调用，把节点放入堆内map；成功返回null，否则返回放弃的原因（已过期、map中已有新值）
+     * @param discard 锁外调用，通知没有放回堆内的节点：install放弃的，或者反序列化期间被put替换、invalidate的
+     * @return 放回堆内的节点，不存在或者被放弃时返回null
+     * */
+    LocalCache.Node<K, V> promote(K key, Function<LocalCache.Node<K, V>, LocalCache.RemovalCause> install,
+                                  BiConsumer<LocalCache.Node<K, V>, LocalCache.RemovalCause> discard){
+        ByteBuffer record;
+        lock.lock();
+        try {
+            Long address = index.remove(key);
+            if(address == null){
+                return null;
+            }
+            record = store.read(first(address), length(address));
+            store.free(first(address), length(address));
+            promoting.add(key);
+        } finally {
+            lock.unlock();
+        }
+        LocalCache.Node<K, V> node;
+        try {
+            node = toNode(key, record);
+        } catch (RuntimeException | Error e) {
+            lock.lock();
+            try {
+                promoting.remove(key);
+                cancelled.remove(key);
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+        LocalCache.RemovalCause cause;
+        lock.lock();
+        try {
+            promoting.remove(key);
+            cause = cancelled.remove(key);
+            if(cause == null){
+                cause = install.apply(node);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if(cause != null){
+            discard.accept(node, cause);
+            return null;
+        }
+        return node;
+    }
+
+    /**
+     * 移出并返回节点，不存在时返回null
+     * @param cause 移出的原因，key正在提升时记下，让提升放弃
+     * */
+    LocalCache.Node<K, V> remove(K key, LocalCache.RemovalCause cause){
+        ByteBuffer record;
+        lock.lock();
+        try {
+            Long address = index.remove(key);
+            if(address == null){
+                cancelPromotion(key, cause);
+                return null;
+            }
+            record = store.read(first(address), length(address));
+            store.free(first(address), length(address));
+        } finally {
+            lock.unlock();
+        }
+        return toNode(key, record);
+    }
+
+    //移出但不读取值
+    boolean invalidate(K key, LocalCache.RemovalCause cause){
+        lock.lock();
+        try {
+            Long address = index.remove(key);
+            if(address == null){
+                cancelPromotion(key, cause);
+                return false;
+            }
+            store.free(first(address), length(address));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //锁内调用
+    private void cancelPromotion(K key, LocalCache.RemovalCause cause){
+        if(promoting.contains(key)){
+            cancelled.putIfAbsent(key, cause);
+        }
+    }
+
+    //包括正在提升的key，invalidateAll需要让它们的提升放弃
+    List<K> keys(){
+        lock.lock();
+        try {
+            List<K> keys = new ArrayList<>(index.keySet());
+            keys.addAll(promoting);
+            return keys;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size(){
+        lock.lock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long evictionCount(){
+        lock.lock();
+        try {
+            return evictionCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long usedBytes(){
+        lock.lock();
+        try {
+            return store.usedBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long reservedBytes(){
+        lock.lock();
+        try {
+            return store.reservedBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private LocalCache.Node<K, V> toNode(K key, ByteBuffer record){
+        long writeTime = record.getLong();
+        long accessTime = record.getLong();
+        LocalCache.Node<K, V> node = new LocalCache.Node<>(key, serializer.deserialize(record), writeTime);
+        node.accessTime = accessTime;
+        return node;
+    }
+
+    private static long address(int first, int length){
+        return (long) first << 32 | (length & 0xFFFFFFFFL);
+    }
+
+    private static int first(long address){
+        return (int) (address >>> 32);
+    }
+
+    private static int length(long address){
+        return (int) address;
+    }
+}
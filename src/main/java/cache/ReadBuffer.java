@@ -0,0 +1,93 @@
+package cache;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * 有损的分段读缓冲，记录缓存命中以便在锁内批量重放给淘汰策略
+ *  * 命中路径不加锁：按线程散列到一个分段，CAS占位后写入，失败或者分段已满时直接丢弃这次记录
+ *  * 丢弃只会让LRU/LFU的顺序略微不准确，不影响正确性；热点key被频繁访问，总会有记录被保留下来
+ *  * 分段满时由offer的调用方tryLock后drain，持锁的线程一次重放所有分段
+ * 与Guava每次命中向ConcurrentLinkedQueue追加一个节点相比，命中路径没有对象分配，CAS失败也不重试
+ * @author fuhaifei
+ * */
+final class ReadBuffer<E> {
+
+    static final int OFFERED = 0;
+    static final int FULL = 1;
+    static final int FAILED = 2;
+
+    //每个分段的容量，2的幂次
+    static final int STRIPE_CAPACITY = 16;
+    private static final int STRIPE_MASK = STRIPE_CAPACITY - 1;
+
+    private final Stripe<E>[] stripes;
+    private final int mask;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ReadBuffer(){
+        int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4 - 1)) << 1;
+        stripes = new Stripe[count];
+        for(int i = 0;i < count;i++){
+            stripes[i] = new Stripe<>();
+        }
+        mask = count - 1;
+    }
+
+    int offer(E e){
+        return stripes[probe() & mask].offer(e);
+    }
+
+    //只能由持有淘汰锁的线程调用
+    void drainTo(Consumer<E> consumer){
+        for(Stripe<E> stripe : stripes){
+            stripe.drainTo(consumer);
+        }
+    }
+
+    //线程id的斐波那契散列，同一线程总是落在同一个分段
+    private static int probe(){
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 40);
+    }
+
+    private static final class Stripe<E> {
+        @SuppressWarnings("rawtypes")
+        private static final AtomicLongFieldUpdater<Stripe> TAIL = AtomicLongFieldUpdater.newUpdater(Stripe.class, "tail");
+
+        private final AtomicReferenceArray<E> buffer = new AtomicReferenceArray<>(STRIPE_CAPACITY);
+        //head只由drain线程推进，tail由生产者CAS推进
+        private volatile long head;
+        private volatile long tail;
+
+        int offer(E e){
+            long currentHead = head;
+            long currentTail = tail;
+            if(currentTail - currentHead >= STRIPE_CAPACITY){
+                return FULL;
+            }
+            if(TAIL.compareAndSet(this, currentTail, currentTail + 1)){
+                buffer.lazySet((int) (currentTail & STRIPE_MASK), e);
+                return OFFERED;
+            }
+            return FAILED;
+        }
+
+        void drainTo(Consumer<E> consumer){
+            long currentHead = head;
+            long currentTail = tail;
+            for(;currentHead != currentTail;currentHead++){
+                int index = (int) (currentHead & STRIPE_MASK);
+                E e = buffer.get(index);
+                //槽位已经被占但生产者还没写入，下次再取
+                if(e == null){
+                    break;
+                }
+                buffer.lazySet(index, null);
+                consumer.accept(e);
+            }
+            head = currentHead;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 堆外层的值序列化，LocalCache.Builder.offHeap时指定
+ *  * serialize在降级（从堆内淘汰到堆外）时调用，deserialize在提升（堆外命中后放回堆内）时调用
+ *  * 两者都在锁外执行，可以比较耗时，但要求线程安全
+ * @author fuhaifei
+ * */
+public interface Serializer<V> {
+
+    byte[] serialize(V value);
+
+    //in的position到limit为serialize写出的内容
+    V deserialize(ByteBuffer in);
+}
@@ -0,0 +1,129 @@
+package cache;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 访问日志回放：同一份访问序列分别经过LRU和W-TinyLFU，比较相同容量下的命中率
+ *  * 日志格式：每行一次访问，取行首第一个字段（空白或逗号分隔）作为key，空行和#开头的行忽略
+ *  * 未指定日志时使用三种合成负载：
+ *      * zipf：稳定的热点分布，两种策略都应该表现良好
+ *      * zipf+scan：热点访问中周期性插入一次性的大范围扫描，LRU的热点数据会被扫描挤出
+ *      * loop：循环访问比缓存稍大的key集合，LRU在这种模式下命中率为0
+ *  * 单线程回放，命中率由LocalCache.stats()统计，缓存未命中时Loader直接返回key
+ * 运行：java cache.TraceReplay [日志文件] [缓存容量...]
+ *      不指定容量时，日志回放使用不同key数量的1%、5%、10%，合成负载使用1000、5000、10000
+ * @author fuhaifei
+ * */
+public class TraceReplay {
+
+    static final int SYNTHETIC_LENGTH = 1_000_000;
+
+    public static void main(String[] args) throws IOException {
+        Map<String, Object[]> traces = new LinkedHashMap<>();
+        List<Long> sizes = new ArrayList<>();
+        if(args.length > 0){
+            Path file = Paths.get(args[0]);
+            traces.put(file.getFileName().toString(), readTrace(file));
+            for(int i = 1;i < args.length;i++){
+                sizes.add(Long.parseLong(args[i]));
+            }
+            if(sizes.isEmpty()){
+                long distinct = distinctKeys(traces.values().iterator().next());
+                for(double fraction : new double[]{0.01, 0.05, 0.1}){
+                    sizes.add(Math.max(1, (long) (distinct * fraction)));
+                }
+            }
+        }else{
+            traces.put("zipf", CacheBenchmark.zipfSequence(100_000, SYNTHETIC_LENGTH, 0.8, 1));
+            traces.put("zipf+scan", zipfWithScans(100_000, SYNTHETIC_LENGTH, 50_000, 20_000));
+            traces.put("loop", loop(15_000, SYNTHETIC_LENGTH));
+            sizes.add(1000L);
+            sizes.add(5000L);
+            sizes.add(10000L);
+        }
+        System.out.printf("%-14s %10s %10s %12s %10s%n", "trace", "size", "lru", "w-tinylfu", "delta");
+        for(Map.Entry<String, Object[]> trace : traces.entrySet()){
+            for(long size : sizes){
+                double lru = replay(trace.getValue(), size, false);
+                double tinyLfu = replay(trace.getValue(), size, true);
+                System.out.printf("%-14s %10d %9.2f%% %11.2f%% %+9.2f%%%n", trace.getKey(), size,
+                        lru * 100, tinyLfu * 100, (tinyLfu - lru) * 100);
+            }
+        }
+    }
+
+    static double replay(Object[] trace, long maximumSize, boolean windowTinyLfu){
+        LocalCache.Builder<Object, Object> builder = LocalCache.newBuilder().maximumSize(maximumSize).recordStats();
+        if(windowTinyLfu){
+            builder.windowTinyLfu();
+        }
+        LocalCache<Object, Object> cache = builder.build(key -> key);
+        for(Object key : trace){
+            cache.get(key);
+        }
+        return cache.stats().hitRate();
+    }
+
+    static Object[] readTrace(Path file) throws IOException {
+        List<Object> keys = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while((line = reader.readLine()) != null){
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#")){
+                    continue;
+                }
+                int end = 0;
+                while(end < line.length() && !Character.isWhitespace(line.charAt(end)) && line.charAt(end) != ','){
+                    end++;
+                }
+                //相同key共享一个String对象，回放时的equals更快
+                keys.add(line.substring(0, end).intern());
+            }
+        }
+        System.out.println("read " + keys.size() + " accesses from " + file);
+        return keys.toArray();
+    }
+
+    static long distinctKeys(Object[] trace){
+        HashSet<Object> keys = new HashSet<>();
+        for(Object key : trace){
+            keys.add(key);
+        }
+        return keys.size();
+    }
+
+    //每隔scanInterval次热点访问插入一次scanLength个从未出现过的key
+    static Object[] zipfWithScans(int keys, int length, int scanInterval, int scanLength){
+        Integer[] zipf = CacheBenchmark.zipfSequence(keys, length, 0.8, 2);
+        List<Object> trace = new ArrayList<>(length + length / scanInterval * scanLength);
+        int nextScanKey = keys;
+        for(int i = 0;i < length;i++){
+            trace.add(zipf[i]);
+            if((i + 1) % scanInterval == 0){
+                for(int j = 0;j < scanLength;j++){
+                    trace.add(nextScanKey++);
+                }
+            }
+        }
+        return trace.toArray();
+    }
+
+    static Object[] loop(int keys, int length){
+        Object[] trace = new Object[length];
+        for(int i = 0;i < length;i++){
+            trace[i] = i % keys;
+        }
+        return trace;
+    }
+}
@@ -0,0 +1,124 @@
+package cache;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * W-TinyLFU淘汰策略（Caffeine使用的算法）
+ *  * 窗口区（window，容量的1%）：LRU，新节点先进入窗口，给突发的新热点一个积累频率的机会
+ *  * 主区（main，容量的99%）：分段LRU（SLRU）
+ *      * 试用段（probation）：从窗口淘汰出来的节点进入这里，命中后晋升到保护段
+ *      * 保护段（protected，主区的80%）：访问过至少两次的节点，满了之后最久未访问的降级回试用段
+ *  * 准入：缓存满时，窗口刚淘汰出来的候选者（candidate）与试用段头部的受害者（victim）比较FrequencySketch中的频率，
+ *    候选者频率更高才能留下，否则候选者被淘汰；一次性扫描的key频率只有1，无法挤掉热点数据
+ *  * 为了防止攻击者构造与热点key相同频率的key一直被拒绝（hash flooding），候选者频率较高时有1/128的概率直接准入
+ * 节点所在的区记录在Node.queue中
+ * @author fuhaifei
+ * */
+public final class WindowTinyLfuPolicy<K, V> implements EvictionPolicy<K, V> {
+
+    static final int WINDOW = 0;
+    static final int PROBATION = 1;
+    static final int PROTECTED = 2;
+
+    static final double WINDOW_PERCENT = 0.01;
+    static final double PROTECTED_PERCENT = 0.8;
+    //候选者频率不低于该值时才考虑随机准入
+    private static final int ADMIT_HASHDOS_THRESHOLD = 6;
+
+    private final FrequencySketch sketch;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private final NodeDeque<K, V> window = new NodeDeque<>();
+    private final NodeDeque<K, V> probation = new NodeDeque<>();
+    private final NodeDeque<K, V> protectedDeque = new NodeDeque<>();
+    //最近一个从窗口进入试用段、还没有参与准入比较的节点
+    private LocalCache.Node<K, V> candidate;
+
+    public WindowTinyLfuPolicy(long maximumSize){
+        this.sketch = new FrequencySketch(maximumSize);
+        this.windowMaximum = Math.max(1, (long) (maximumSize * WINDOW_PERCENT));
+        this.protectedMaximum = (long) (Math.max(0, maximumSize - windowMaximum) * PROTECTED_PERCENT);
+    }
+
+    @Override
+    public void onAdd(LocalCache.Node<K, V> node) {
+        sketch.increment(node.key);
+        node.queue = WINDOW;
+        window.linkLast(node);
+        if(window.size() > windowMaximum){
+            LocalCache.Node<K, V> first = window.peekFirst();
+            window.unlink(first);
+            first.queue = PROBATION;
+            probation.linkLast(first);
+            candidate = first;
+        }
+    }
+
+    @Override
+    public void onAccess(LocalCache.Node<K, V> node) {
+        sketch.increment(node.key);
+        switch (node.queue) {
+            case WINDOW -> window.moveToLast(node);
+            case PROBATION -> {
+                if(protectedMaximum == 0){
+                    probation.moveToLast(node);
+                    return;
+                }
+                if(node == candidate){
+                    candidate = null;
+                }
+                probation.unlink(node);
+                node.queue = PROTECTED;
+                protectedDeque.linkLast(node);
+                if(protectedDeque.size() > protectedMaximum){
+                    LocalCache.Node<K, V> demoted = protectedDeque.peekFirst();
+                    protectedDeque.unlink(demoted);
+                    demoted.queue = PROBATION;
+                    probation.linkLast(demoted);
+                }
+            }
+            default -> protectedDeque.moveToLast(node);
+        }
+    }
+
+    @Override
+    public void onRemove(LocalCache.Node<K, V> node) {
+        if(node == candidate){
+            candidate = null;
+        }
+        switch (node.queue) {
+            case WINDOW -> window.unlink(node);
+            case PROBATION -> probation.unlink(node);
+            default -> protectedDeque.unlink(node);
+        }
+    }
+
+    @Override
+    public LocalCache.Node<K, V> victim() {
+        LocalCache.Node<K, V> victim = probation.peekFirst();
+        LocalCache.Node<K, V> candidate = this.candidate;
+        this.candidate = null;
+        if(victim == null){
+            //主区没有试用节点（容量很小或者全部晋升），依次从保护段、窗口淘汰
+            victim = protectedDeque.peekFirst();
+            return victim != null ? victim : window.peekFirst();
+        }
+        if(candidate == null || candidate == victim){
+            return victim;
+        }
+        return admit(candidate, victim) ? victim : candidate;
+    }
+
+    //候选者能否替换受害者
+    private boolean admit(LocalCache.Node<K, V> candidate, LocalCache.Node<K, V> victim){
+        int candidateFrequency = sketch.frequency(candidate.key);
+        int victimFrequency = sketch.frequency(victim.key);
+        if(candidateFrequency > victimFrequency){
+            return true;
+        }
+        if(candidateFrequency < ADMIT_HASHDOS_THRESHOLD){
+            return false;
+        }
+        return (ThreadLocalRandom.current().nextInt() & 127) == 0;
+    }
+}
@@ -0,0 +1,48 @@
+package IO;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 虚拟线程服务器 vs 单线程Reactor：相同的按行回显协议，比较延迟分位数和每连接内存
+ *  * Reactor的业务执行器为Runnable::run，回显不会阻塞，直接在Selector线程执行，比较的是两种IO模型本身
+ *  * 每个服务器先用少量连接预热（JIT），再跑正式的一轮
+ *  * 连接数受文件描述符限制：客户端和服务器在同一进程，每个连接占2个fd，10万连接需要 ulimit -n 200000 以上
+ * 运行：java -Xmx4g IO.VirtualThreadBenchmark [连接数] [每连接往返次数] [请求字节数]
+ * @author fuhaifei
+ * */
+public class VirtualThreadBenchmark {
+
+    static final int REACTOR_PORT = 19090;
+    static final int VIRTUAL_THREAD_PORT = 19091;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+        int roundTrips = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int payloadSize = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int warmupConnections = Math.min(connections, 500);
+        List<EchoBenchmark.Result> results = new ArrayList<>();
+
+        ReactorServerDemo reactorServer = new ReactorServerDemo(EchoBenchmark.ECHO, Runnable::run).idleTimeout(0, 0);
+        Thread reactorThread = new Thread(reactorServer.new SingleReactor(REACTOR_PORT), "single-reactor");
+        reactorThread.start();
+        InetSocketAddress reactorAddress = new InetSocketAddress("127.0.0.1", REACTOR_PORT);
+        EchoBenchmark.run("warmup", reactorAddress, warmupConnections, roundTrips, payloadSize);
+        results.add(EchoBenchmark.run("SingleReactor", reactorAddress, connections, roundTrips, payloadSize));
+        reactorThread.interrupt();
+        reactorThread.join();
+
+        try (VirtualThreadServer server = new VirtualThreadServer(VIRTUAL_THREAD_PORT, EchoBenchmark.ECHO)) {
+            Thread.ofPlatform().name("vt-acceptor").daemon(true).start(server);
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", VIRTUAL_THREAD_PORT);
+            EchoBenchmark.run("warmup", address, warmupConnections, roundTrips, payloadSize);
+            results.add(EchoBenchmark.run("VirtualThreadServer", address, connections, roundTrips, payloadSize));
+        }
+
+        System.out.println(EchoBenchmark.Result.header());
+        for(EchoBenchmark.Result result : results){
+            System.out.println(result);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package IO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 虚拟线程服务器：一个连接一个虚拟线程，保持BasicUse.testSocketTcpChannel中最简单的阻塞写法
+ *  * accept、read、write都是阻塞调用，虚拟线程阻塞时从载体线程上卸载，载体线程数默认等于CPU核数
+ *  * 阻塞中的连接只占用一个挂起的虚拟线程栈（在堆上）+ 读缓冲，10万连接不需要10万个平台线程
+ *  * 读缓冲在连接期间一直持有（Reactor只在读事件期间借用），这是阻塞写法每连接多出的内存
+ *  * 缓冲池不使用线程本地缓存：虚拟线程不会复用，线程本地缓存只会让每个连接多占内存
+ *  * 写回使用ReentrantLock：JDK21中在synchronized块内阻塞会钉住（pin）载体线程
+ * 协议与ReactorServerDemo相同（FrameDecoder拆帧 + BusinessHandler）
+ * 需要JDK21+，由pom中的jdk21 profile把src/main/java21加入编译
+ * @author fuhaifei
+ * */
+public class VirtualThreadServer implements Runnable, Closeable {
+    private static Logger logger = LoggerFactory.getLogger(VirtualThreadServer.class.getName());
+
+    static final int READ_BUFFER_SIZE = 4096;
+    static final DirectBufferPool POOL = new DirectBufferPool(512, 10, 0, 1024, false);
+
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService connectionExecutor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("vt-conn-", 0).factory());
+    private final BusinessHandler businessHandler;
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private volatile boolean closed;
+
+    public VirtualThreadServer(int port, BusinessHandler businessHandler) throws IOException {
+        this.businessHandler = businessHandler;
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+    }
+
+    @Override
+    public void run() {
+        while(!closed){
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                connectionExecutor.execute(new Connection(channel));
+            } catch (IOException e) {
+                if(!closed){
+                    logger.error(Thread.currentThread().getName() + "accept connection failed:" + e);
+                }
+            }
+        }
+    }
+
+    public int activeConnections(){
+        return activeConnections.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverChannel.close();
+        //中断阻塞在read上的虚拟线程，对应的channel会被关闭
+        connectionExecutor.shutdownNow();
+    }
+
+    /**
+     * 一个连接的完整生命周期，运行在独立的虚拟线程中
+     * */
+    class Connection implements Runnable, HandlerContext {
+        final SocketChannel channel;
+        final SocketAddress remoteAddress;
+        final FrameDecoder frameDecoder = new FrameDecoder.LineFrameDecoder(POOL, ReactorServerDemo.MAX_FRAME_LENGTH);
+        final ReentrantLock writeLock = new ReentrantLock();
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.remoteAddress = channel.getRemoteAddress();
+        }
+
+        @Override
+        public void run() {
+            activeConnections.incrementAndGet();
+            ByteBuffer buffer = POOL.acquire(READ_BUFFER_SIZE);
+            try {
+                while(channel.read(buffer) != -1){
+                    buffer.flip();
+                    frameDecoder.decode(buffer, frame -> businessHandler.handle(this, frame));
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                if(channel.isOpen()){
+                    logger.error(Thread.currentThread().getName() + "connection " + remoteAddress + " failed:" + e);
+                }
+            } finally {
+                POOL.release(buffer);
+                frameDecoder.release();
+                close();
+                activeConnections.decrementAndGet();
+            }
+        }
+
+        @Override
+        public SocketAddress remoteAddress() {
+            return remoteAddress;
+        }
+
+        //业务逻辑一般在本连接的虚拟线程中调用，加锁保证其他线程写回时响应不会交错
+        @Override
+        public void write(byte[] response) {
+            ByteBuffer buffer = ByteBuffer.wrap(frameDecoder.frame(response));
+            writeLock.lock();
+            try {
+                while(buffer.hasRemaining()){
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                close();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void writeFile(FileChannel file, long position, long count) {
+            writeLock.lock();
+            try (file) {
+                long sent = 0;
+                while(sent < count){
+                    long n = file.transferTo(position + sent, count - sent, channel);
+                    if(n <= 0){
+                        throw new IOException("file truncated while sending");
+                    }
+                    sent += n;
+                }
+            } catch (IOException e) {
+                close();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}